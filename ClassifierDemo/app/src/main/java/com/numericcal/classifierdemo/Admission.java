@@ -0,0 +1,75 @@
+package com.numericcal.classifierdemo;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.reactivex.functions.Predicate;
+
+/**
+ * Per-pipeline admission control. A counting permit lets up to `depth` frames be in flight at
+ * once, so preprocessing of frame k+1 overlaps inference of frame k. Frames arriving while all
+ * permits are taken are dropped at the door instead of queuing behind the slow stage.
+ */
+public class Admission {
+    private static final String TAG = "AS.Admission";
+
+    private final int depth;
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+    private final AtomicLong admitted = new AtomicLong(0);
+    private final AtomicLong dropped = new AtomicLong(0);
+
+    /**
+     * @param depth - maximum number of frames in flight
+     */
+    public Admission(int depth) {
+        this.depth = depth;
+    }
+
+    /**
+     * @return true if a permit was taken (must be followed by release())
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            int cur = inFlight.get();
+            if (cur >= depth) {
+                dropped.incrementAndGet();
+                return false;
+            }
+            if (inFlight.compareAndSet(cur, cur + 1)) {
+                admitted.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    public void release() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * Admit a tagged token if a permit is free. The permit is returned together with the rest
+     * of the token's resources (Tags.release). Rejected tokens are released and recycled right away.
+     */
+    public <T> Predicate<Tags.TTok<T>> admitTT() {
+        return ttok -> {
+            if (!tryAcquire()) {
+                Tags.<T>release().apply(ttok);
+                ttok.md.recycle();
+                return false;
+            }
+            ttok.md.releases.add(this::release);
+            return true;
+        };
+    }
+
+    public int depth() { return depth; }
+    public int inFlight() { return inFlight.get(); }
+    public long admitted() { return admitted.get(); }
+    public long dropped() { return dropped.get(); }
+
+    @Override
+    public String toString() {
+        return String.format("in flight: %d/%d admitted: %d dropped: %d",
+                inFlight.get(), depth, admitted.get(), dropped.get());
+    }
+}
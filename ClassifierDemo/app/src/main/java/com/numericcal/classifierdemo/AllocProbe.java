@@ -0,0 +1,172 @@
+package com.numericcal.classifierdemo;
+
+import android.os.Build;
+import android.os.Debug;
+
+import java.lang.reflect.Method;
+import java.util.List;
+
+/**
+ * Allocation and GC counters for stage instrumentation (see Tags.setAllocTracking).
+ *
+ * On ART the per-thread allocated bytes come from Debug allocation counting and the GC
+ * counters from Debug.getRuntimeStat (API 23+). On a desktop JVM (harnesses, the trace tools)
+ * they come from the HotSpot thread and GC MX beans, looked up by reflection since
+ * java.lang.management does not exist on Android. Where neither is available everything reads
+ * as 0 and available() is false.
+ */
+public class AllocProbe {
+    private static final String TAG = "AS.AllocProbe";
+
+    interface Backend {
+        void enable();
+        long threadAllocated();
+        long gcCount();
+        long gcTimeMs();
+    }
+
+    private static final Backend BACKEND = pick();
+
+    private static Backend pick() {
+        String vm = System.getProperty("java.vm.name", "");
+        if (vm.startsWith("Dalvik")) {
+            return new Art();
+        }
+        try {
+            return new Jvm();
+        } catch (Exception ex) {
+            return null;
+        }
+    }
+
+    public static boolean available() { return BACKEND != null; }
+
+    /**
+     * Start counting (ART only counts allocations once asked to).
+     */
+    public static void enable() {
+        if (BACKEND != null) BACKEND.enable();
+    }
+
+    /**
+     * @return bytes allocated by the calling thread so far (only differences are meaningful)
+     */
+    public static long threadAllocated() {
+        return BACKEND != null ? BACKEND.threadAllocated() : 0L;
+    }
+
+    /**
+     * @return number of garbage collections so far
+     */
+    public static long gcCount() {
+        return BACKEND != null ? BACKEND.gcCount() : 0L;
+    }
+
+    /**
+     * @return time spent in garbage collection so far, ms
+     */
+    public static long gcTimeMs() {
+        return BACKEND != null ? BACKEND.gcTimeMs() : 0L;
+    }
+
+    @SuppressWarnings("deprecation")
+    static class Art implements Backend {
+        @Override
+        public void enable() {
+            Debug.startAllocCounting();
+        }
+
+        @Override
+        public long threadAllocated() {
+            return Debug.getThreadAllocSize();
+        }
+
+        @Override
+        public long gcCount() {
+            return runtimeStat("art.gc.gc-count");
+        }
+
+        @Override
+        public long gcTimeMs() {
+            return runtimeStat("art.gc.gc-time");
+        }
+
+        private static long runtimeStat(String name) {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) return 0L;
+            String val = Debug.getRuntimeStat(name);
+            try {
+                return val != null ? Long.parseLong(val) : 0L;
+            } catch (NumberFormatException nfe) {
+                return 0L;
+            }
+        }
+    }
+
+    static class Jvm implements Backend {
+        private final Object threads;
+        private final Method currentAllocated; // JDK 14+, null before
+        private final Method allocated;
+        private final List<?> collectors;
+        private final Method collectionCount;
+        private final Method collectionTime;
+
+        Jvm() throws Exception {
+            Class<?> factory = Class.forName("java.lang.management.ManagementFactory");
+            Class<?> threadBean = Class.forName("com.sun.management.ThreadMXBean");
+            Class<?> gcBean = Class.forName("java.lang.management.GarbageCollectorMXBean");
+
+            threads = factory.getMethod("getThreadMXBean").invoke(null);
+            allocated = threadBean.getMethod("getThreadAllocatedBytes", long.class);
+            Method cur = null;
+            try {
+                cur = threadBean.getMethod("getCurrentThreadAllocatedBytes");
+            } catch (NoSuchMethodException nsme) {
+                // older JDK, use the thread id version
+            }
+            currentAllocated = cur;
+
+            collectors = (List<?>) factory.getMethod("getGarbageCollectorMXBeans").invoke(null);
+            collectionCount = gcBean.getMethod("getCollectionCount");
+            collectionTime = gcBean.getMethod("getCollectionTime");
+        }
+
+        @Override
+        public void enable() {
+            // always on in HotSpot
+        }
+
+        @Override
+        public long threadAllocated() {
+            try {
+                if (currentAllocated != null) {
+                    return (Long) currentAllocated.invoke(threads);
+                }
+                return (Long) allocated.invoke(threads, Thread.currentThread().getId());
+            } catch (Exception ex) {
+                return 0L;
+            }
+        }
+
+        @Override
+        public long gcCount() {
+            return sum(collectionCount);
+        }
+
+        @Override
+        public long gcTimeMs() {
+            return sum(collectionTime);
+        }
+
+        private long sum(Method m) {
+            long acc = 0;
+            try {
+                for (Object gc: collectors) {
+                    acc += Math.max(0L, (Long) m.invoke(gc));
+                }
+            } catch (Exception ex) {
+                return 0L;
+            }
+            return acc;
+        }
+    }
+}
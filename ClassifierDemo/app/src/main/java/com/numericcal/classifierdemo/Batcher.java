@@ -0,0 +1,191 @@
+package com.numericcal.classifierdemo;
+
+import android.util.Pair;
+
+import com.numericcal.edge.Dnn;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.reactivex.ObservableTransformer;
+import io.reactivex.functions.Function;
+import io.reactivex.schedulers.Schedulers;
+
+/**
+ * Batched inference for throughput-oriented (offline) classification. Float tensors are
+ * collected for up to maxWaitMs or until the batch is full, packed row by row into one input
+ * tensor, run through the model in one call, and the output is split back into one token per
+ * item, in order.
+ *
+ * Whether a model batches is read from its input shape: a batch dimension above 1 is a fixed
+ * batch (partial batches are zero padded). Anything else runs one item per call, pipelined one
+ * item at a time. That includes variable batch dimensions (0 or -1): whether the engine
+ * accepts an input sized at run time is unverified for edge 0.20.0-beta.
+ *
+ * Each item records a "batching" stage (waiting for the batch and packing) and a "classifier"
+ * stage covering the whole batched call, since that is what the item waits for.
+ */
+public class Batcher {
+    private static final String TAG = "AS.Batcher";
+
+    private static final int BATCHING = Tags.stageId("batching");
+    private static final int CLASSIFIER = Tags.stageId("classifier");
+
+    // items packed into one input tensor
+    static class Batch {
+        final List<Tags.TTok<float[]>> items;
+        final float[] packed;
+
+        Batch(List<Tags.TTok<float[]>> items, float[] packed) {
+            this.items = items;
+            this.packed = packed;
+        }
+    }
+
+    final int maxBatch;
+    final long maxWaitMs;
+    final TensorPool pool;
+
+    private final AtomicLong batches = new AtomicLong(0);
+    private final AtomicLong items = new AtomicLong(0);
+
+    /**
+     * @param maxBatch - items per inference call at most (also capped by the model)
+     * @param maxWaitMs - time to wait for a batch to fill up
+     * @param pool - pool for the packed inputs and the per item outputs
+     */
+    public Batcher(int maxBatch, long maxWaitMs, TensorPool pool) {
+        this.maxBatch = maxBatch;
+        this.maxWaitMs = maxWaitMs;
+        this.pool = pool;
+    }
+
+    /**
+     * @return the model's batch dimension (1 for models without one)
+     */
+    public static int batchDim(Dnn.Handle handle) {
+        List<Integer> shape = handle.info.inputShape;
+        return shape.size() > 3 ? shape.get(0) : 1;
+    }
+
+    // elements per item: product of everything but the batch dimension
+    private static int itemLen(List<Integer> shape) {
+        int len = 1;
+        for (int k = 1; k < shape.size(); k++) {
+            len *= shape.get(k);
+        }
+        return len;
+    }
+
+    /**
+     * Inference over float tensors, batched if the model allows it. Item tensors are left
+     * alone (release them as usual); the outputs are leased from the pool and handed back
+     * on release.
+     * @param handle - the model
+     */
+    public ObservableTransformer<Tags.TTok<float[]>, Tags.TTok<float[]>> inferTT(Dnn.Handle handle) {
+        int dim = batchDim(handle);
+        if (dim < 2 || maxBatch < 2) {
+            // one item per call, let the next item prepare while this one runs
+            return upstream -> upstream
+                    .observeOn(Schedulers.computation())
+                    .compose(handle.runInference(Tags.extract(), Tags.combine("classifier")));
+        }
+
+        int fill = Math.min(maxBatch, dim);
+        int inLen = itemLen(handle.info.inputShape);
+        int outLen = itemLen(handle.info.outputShape);
+
+        return upstream -> upstream
+                .map(this::<float[]>enter)
+                .buffer(maxWaitMs, TimeUnit.MILLISECONDS, fill)
+                .filter(list -> !list.isEmpty())
+                .map(list -> pack(list, dim, inLen))
+                .observeOn(Schedulers.computation())
+                .compose(handle.runInference(extractBatch(), splitBatch(outLen)))
+                .concatMapIterable(list -> list);
+    }
+
+    // start the batching stage of a traced item
+    private <T> Tags.TTok<T> enter(Tags.TTok<T> ttok) {
+        if (ttok.md.traced) {
+            ttok.md.begin();
+        }
+        return ttok;
+    }
+
+    Batch pack(List<Tags.TTok<float[]>> list, int rows, int inLen) {
+        float[] packed = pool.leaseFloats(rows * inLen);
+        for (int i = 0; i < list.size(); i++) {
+            System.arraycopy(list.get(i).token, 0, packed, i * inLen, inLen);
+        }
+        // padding rows of a fixed batch
+        Arrays.fill(packed, list.size() * inLen, rows * inLen, 0.0f);
+
+        for (Tags.TTok<float[]> ttok: list) {
+            if (ttok.md.traced) {
+                ttok.md.end(BATCHING);
+            }
+        }
+        batches.incrementAndGet();
+        items.addAndGet(list.size());
+        return new Batch(list, packed);
+    }
+
+    private Function<Batch, Pair<Batch, float[]>> extractBatch() {
+        return batch -> {
+            for (Tags.TTok<float[]> ttok: batch.items) {
+                if (ttok.md.traced) {
+                    ttok.md.begin();
+                }
+            }
+            return new Pair<>(batch, batch.packed);
+        };
+    }
+
+    private Function<Pair<Batch, float[]>, List<Tags.TTok<float[]>>> splitBatch(int outLen) {
+        return input -> {
+            Batch batch = input.first;
+            float[] out = input.second;
+            pool.release(batch.packed);
+
+            int n = batch.items.size();
+            if (out.length < n * outLen) {
+                throw new IllegalStateException("batch output too short: " + out.length
+                        + " for " + n + " x " + outLen);
+            }
+
+            List<Tags.TTok<float[]>> res = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                Tags.MetaData md = batch.items.get(i).md;
+                float[] row = pool.leaseFloats(outLen);
+                System.arraycopy(out, i * outLen, row, 0, outLen);
+                md.releases.add(() -> pool.release(row));
+                if (md.traced) {
+                    md.end(CLASSIFIER);
+                }
+                res.add(new Tags.TTok<>(md, row));
+            }
+            return res;
+        };
+    }
+
+    public long batches() { return batches.get(); }
+    public long items() { return items.get(); }
+
+    /**
+     * @return average items per inference call
+     */
+    public float meanBatch() {
+        long b = batches.get();
+        return b > 0 ? (float) items.get() / b : 0.0f;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("batches: %d items: %d (%.2f per batch)", batches.get(), items.get(), meanBatch());
+    }
+}
@@ -0,0 +1,120 @@
+package com.numericcal.classifierdemo;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Bounded pool of mutable Bitmaps keyed by size and config. Stages draw into leased Bitmaps
+ * through a Canvas instead of allocating, and the chain hands them back once downstream
+ * consumers are done with them.
+ */
+public class BitmapPool {
+    private static final String TAG = "AS.BitmapPool";
+
+    private final int maxPerKey;
+    private final Map<Long, ArrayDeque<Bitmap>> free = new HashMap<>();
+    private final Map<Bitmap, Long> leased = new IdentityHashMap<>();
+
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * @param maxPerKey - maximum number of idle bitmaps kept for each size/config
+     */
+    public BitmapPool(int maxPerKey) {
+        this.maxPerKey = maxPerKey;
+    }
+
+    private static long key(int w, int h, Bitmap.Config config) {
+        return ((long) w << 32) | ((long) h << 8) | config.ordinal();
+    }
+
+    /**
+     * Lease a bitmap. Content is undefined; stages either cover it completely or clear it.
+     * @param w - width
+     * @param h - height
+     * @param config - pixel config
+     * @return a mutable bitmap
+     */
+    public synchronized Bitmap lease(int w, int h, Bitmap.Config config) {
+        ArrayDeque<Bitmap> idle = free.get(key(w, h, config));
+        Bitmap bmp = (idle == null) ? null : idle.poll();
+        if (bmp == null) {
+            misses += 1;
+            bmp = Bitmap.createBitmap(w, h, config);
+        } else {
+            hits += 1;
+        }
+        leased.put(bmp, System.currentTimeMillis());
+        return bmp;
+    }
+
+    /**
+     * Return a bitmap. Bitmaps that did not come from this pool are ignored, so it is safe
+     * to release whatever flows through a stage.
+     * @param bmp - bitmap obtained from lease
+     */
+    public synchronized void release(Bitmap bmp) {
+        if (leased.remove(bmp) == null || bmp.isRecycled()) {
+            return;
+        }
+
+        long k = key(bmp.getWidth(), bmp.getHeight(), bmp.getConfig());
+        ArrayDeque<Bitmap> idle = free.get(k);
+        if (idle == null) {
+            idle = new ArrayDeque<>();
+            free.put(k, idle);
+        }
+        if (idle.size() < maxPerKey) {
+            idle.push(bmp);
+        }
+    }
+
+    /**
+     * Count bitmaps that have been out for longer than expected (likely leaked).
+     * @param maxAgeMs - lease age considered a leak
+     * @return number of suspected leaks
+     */
+    public synchronized int leaks(long maxAgeMs) {
+        long now = System.currentTimeMillis();
+        int cnt = 0;
+        for (Long t: leased.values()) {
+            if (now - t > maxAgeMs) cnt += 1;
+        }
+        return cnt;
+    }
+
+    /**
+     * Forget leases older than maxAgeMs so the bookkeeping does not grow without bound.
+     * @param maxAgeMs - lease age considered a leak
+     * @return number of leases dropped
+     */
+    public synchronized int reclaim(long maxAgeMs) {
+        long now = System.currentTimeMillis();
+        int before = leased.size();
+        Iterator<Long> it = leased.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next() > maxAgeMs) it.remove();
+        }
+        int dropped = before - leased.size();
+        if (dropped > 0) {
+            Log.w(TAG, "Dropped " + dropped + " leaked bitmaps.");
+        }
+        return dropped;
+    }
+
+    public synchronized int outstanding() { return leased.size(); }
+    public synchronized long hits() { return hits; }
+    public synchronized long misses() { return misses; }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("hits: %d misses: %d outstanding: %d", hits, misses, leased.size());
+    }
+}
@@ -2,11 +2,10 @@ package com.numericcal.classifierdemo;
 
 import android.Manifest;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.ImageFormat;
+import android.graphics.Canvas;
 import android.graphics.Matrix;
+import android.graphics.Paint;
 import android.graphics.Rect;
-import android.graphics.YuvImage;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
 import android.widget.TextView;
@@ -15,8 +14,6 @@ import com.tbruyelle.rxpermissions2.RxPermissions;
 import com.uber.autodispose.AutoDispose;
 import com.uber.autodispose.android.lifecycle.AndroidLifecycleScopeProvider;
 
-import java.io.ByteArrayOutputStream;
-
 import io.fotoapparat.Fotoapparat;
 import io.fotoapparat.parameter.ScaleType;
 import io.fotoapparat.preview.Frame;
@@ -27,6 +24,7 @@ import io.reactivex.Completable;
 import io.reactivex.Observable;
 import io.reactivex.ObservableTransformer;
 import io.reactivex.functions.Function;
+import io.reactivex.functions.Predicate;
 import io.reactivex.subjects.CompletableSubject;
 
 
@@ -60,10 +58,22 @@ public class Camera {
      * @param act - activity
      * @param preview - Fotoapparat view
      * @param permission - completable obtaining CAMERA permission
-     * @return a stream of frames grabbed by Fotoapparat
+     * @return a stream of raw NV21 frames grabbed by Fotoapparat
      */
-    public static Observable<Bitmap> getFeed(
+    public static Observable<Frame> getFrames(
             AppCompatActivity act, CameraView preview, Completable permission) {
+        return getFrames(act, preview, permission, __ -> true);
+    }
+
+    /**
+     * Same as getFrames, but frames the gate rejects are skipped on the camera thread (see
+     * FrameSampler). Frames are emitted from the frame callback, so their buffer is only valid
+     * until the first thread hop (copy them into a FrameRing before that).
+     * @param gate - called on the camera thread for every preview frame
+     */
+    public static Observable<Frame> getFrames(
+            AppCompatActivity act, CameraView preview, Completable permission,
+            Predicate<Frame> gate) {
 
         Observable<Frame> obs = Observable.create(emitter -> {
             Fotoapparat fotoapparat = Fotoapparat
@@ -71,7 +81,15 @@ public class Camera {
                     .into(preview)
                     .previewScaleType(ScaleType.CenterCrop)
                     .lensPosition(back())
-                    .frameProcessor(emitter::onNext)
+                    .frameProcessor(f -> {
+                        try {
+                            if (!gate.test(f)) return;
+                        } catch (Exception ex) {
+                            emitter.tryOnError(ex);
+                            return;
+                        }
+                        emitter.onNext(f);
+                    })
                     .build();
             fotoapparat.start();
             emitter.setCancellable(() -> {
@@ -79,11 +97,55 @@ public class Camera {
                 fotoapparat.stop();
             });
         });
-        return permission
-                .andThen(obs).compose(yuv2bmp())
+        return permission.andThen(obs);
+    }
+
+    /**
+     * Same as getFrames, but converted to upright Bitmaps.
+     * @param act - activity
+     * @param preview - Fotoapparat view
+     * @param permission - completable obtaining CAMERA permission
+     * @return a stream of frames grabbed by Fotoapparat
+     */
+    public static Observable<Bitmap> getFeed(
+            AppCompatActivity act, CameraView preview, Completable permission) {
+
+        return getFrames(act, preview, permission)
+                .compose(yuv2bmp())
                 .compose(bmpRotate(90));
     }
 
+    /**
+     * Same as getFeed, but frames are converted and rotated into pooled bitmaps. Consumers
+     * release them to the same pool when done.
+     * @param act - activity
+     * @param preview - Fotoapparat view
+     * @param permission - completable obtaining CAMERA permission
+     * @param pool - bitmap pool
+     * @return a stream of pooled frames grabbed by Fotoapparat
+     */
+    public static Observable<Bitmap> getFeed(
+            AppCompatActivity act, CameraView preview, Completable permission, BitmapPool pool) {
+
+        return getFrames(act, preview, permission)
+                .compose(yuv2bmp(pool))
+                .compose(bmpRotate(90, pool));
+    }
+
+    /**
+     * Same as getFeed(.., pool), but frames the gate rejects are skipped before conversion
+     * (see FrameSampler).
+     * @param gate - sampling gate for raw frames
+     */
+    public static Observable<Bitmap> getFeed(
+            AppCompatActivity act, CameraView preview, Completable permission, BitmapPool pool,
+            Predicate<Frame> gate) {
+
+        return getFrames(act, preview, permission, gate)
+                .compose(yuv2bmp(pool))
+                .compose(bmpRotate(90, pool));
+    }
+
 
     /**
      * Performs center crop. Does not check if sizes are reasonable.
@@ -99,26 +161,70 @@ public class Camera {
         };
     }
 
+    /**
+     * Pooled center crop. Draws into a leased bitmap; the caller must release the result.
+     * @param w - desired width
+     * @param h - desired height
+     * @param pool - bitmap pool
+     * @return cropped bitmap function
+     */
+    public static Function<Bitmap, Bitmap> centerCropTo(int w, int h, BitmapPool pool) {
+        Canvas canvas = new Canvas();
+        Rect src = new Rect();
+        Rect dst = new Rect(0, 0, w, h);
+        return bmp -> {
+            int upper = (bmp.getHeight() - h)/2;
+            int left = (bmp.getWidth() - w)/2;
+            src.set(left, upper, left + w, upper + h);
+
+            Bitmap res = pool.lease(w, h, Bitmap.Config.ARGB_8888);
+            canvas.setBitmap(res);
+            canvas.drawBitmap(bmp, src, dst, null);
+            canvas.setBitmap(null);
+            return res;
+        };
+    }
+
     public static Function<Bitmap, Bitmap> scaleTo(int w, int h) {
         return bmp -> Bitmap.createScaledBitmap(bmp, w, h, true);
     }
 
+    /**
+     * Pooled scaling. Draws into a leased bitmap; the caller must release the result.
+     * @param w - desired width
+     * @param h - desired height
+     * @param pool - bitmap pool
+     * @return scaled bitmap function
+     */
+    public static Function<Bitmap, Bitmap> scaleTo(int w, int h, BitmapPool pool) {
+        Canvas canvas = new Canvas();
+        Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        Rect dst = new Rect(0, 0, w, h);
+        return bmp -> {
+            Bitmap res = pool.lease(w, h, Bitmap.Config.ARGB_8888);
+            canvas.setBitmap(res);
+            canvas.drawBitmap(bmp, null, dst, paint);
+            canvas.setBitmap(null);
+            return res;
+        };
+    }
+
     /**
      * Convert YUV NV21 to Bitmap. Fotoapparat will produce NV21 but we need Bitmap for DNN.
+     * Converts the planes directly (fixed-point BT.601) instead of going through JPEG.
      * @return new bitmap flowable
      */
     public static ObservableTransformer<Frame, Bitmap> yuv2bmp() {
-        return upstream ->
-                upstream
-                        .map((Frame f) -> {
-                            int width = f.getSize().width;
-                            int height = f.getSize().height;
-                            YuvImage yuv = new YuvImage(f.getImage(), ImageFormat.NV21, width, height, null);
-                            ByteArrayOutputStream os = new ByteArrayOutputStream();
-                            yuv.compressToJpeg(new Rect(0, 0, width, height), 100, os);
-                            byte[] jpegByteArray = os.toByteArray();
-                            return BitmapFactory.decodeByteArray(jpegByteArray, 0, jpegByteArray.length);
-                        });
+        return Yuv.yuv2bmp(Stripes.perCore());
+    }
+
+    /**
+     * Same as yuv2bmp(), but the bitmaps are leased from a pool.
+     * @param pool - bitmap pool
+     * @return pooled bitmap flowable
+     */
+    public static ObservableTransformer<Frame, Bitmap> yuv2bmp(BitmapPool pool) {
+        return Yuv.yuv2bmp(Stripes.perCore(), pool);
     }
 
     /**
@@ -136,8 +242,22 @@ public class Camera {
                         });
     }
 
-
-
-
+    /**
+     * Pooled bitmap rotation. Takes ownership of its input: input bitmaps are released to the
+     * pool once drawn (foreign bitmaps are ignored by the pool).
+     * @param angle - clockwise angle to rotate.
+     * @param pool - bitmap pool
+     * @return rotated bitmap
+     */
+    public static ObservableTransformer<Bitmap, Bitmap> bmpRotate(float angle, BitmapPool pool) {
+        Function<Bitmap, Bitmap> rotate = Utils.bmpRotate(angle, pool);
+        return upstream ->
+                upstream
+                        .map(bmp -> {
+                            Bitmap res = rotate.apply(bmp);
+                            pool.release(bmp);
+                            return res;
+                        });
+    }
 
 }
@@ -57,25 +57,38 @@ public class Classifier {
     }
 
 
+    /**
+     * Top-N classes in descending confidence. The tensor is not modified.
+     * @param topN - number of classes to report
+     * @param labels - class names, indexed like the tensor
+     * @param probLen - number of classes in the tensor
+     * @return a function object float[] -> List<ClassLabel>
+     */
     public static Function<float[], List<ClassLabel>> findMostLikelyClasses(int topN, List<String> labels, int probLen) {
-        return tensor -> {
-            List<ClassLabel> topLabels = new ArrayList<>();
-            for(int k=0; k<topN; k++) {
-                int maxPos = Utils.argmax(tensor,0,probLen);
-                float curProb = tensor[maxPos];
-                String className = labels.get(maxPos);
-                tensor[maxPos] = 0.0f;
-
-                topLabels.add(new ClassLabel(curProb,className));
+        return findMostLikelyClasses(topN, labels, probLen, Float.NEGATIVE_INFINITY);
+    }
+
+    /**
+     * Same as above, but classes below the threshold are left out (the list may be shorter
+     * than topN). Label strings are looked up only for the winners.
+     * @param threshold - minimum confidence to report
+     */
+    public static Function<float[], List<ClassLabel>> findMostLikelyClasses(int topN, List<String> labels, int probLen,
+                                                                            float threshold) {
+        return new Utils.Agent<float[], TopK, List<ClassLabel>>(new TopK(topN)) {
+            @Override
+            public List<ClassLabel> apply(float[] tensor) {
+                TopK top = state.select(tensor, 0, probLen, threshold);
+
+                List<ClassLabel> topLabels = new ArrayList<>(top.size());
+                for (int k = 0; k < top.size(); k++) {
+                    topLabels.add(new ClassLabel(top.score(k), labels.get(top.index(k))));
+                }
+                return topLabels;
             }
-            return topLabels;
         };
     }
 
-
-
-
-
     /**
      * Draw labels on a bitmap to be overlaid on top of the camera frame stream.
      * @return
@@ -92,5 +105,24 @@ public class Classifier {
         };
     }
 
+    /**
+     * Same as displayLabels(w, h), but the overlay is leased from a pool. Release it once
+     * the view shows a newer overlay.
+     * @return
+     */
+    public static Function<List<ClassLabel>, Bitmap> displayLabels(int w, int h, BitmapPool pool) {
+        Canvas boxCanvas = new Canvas();
+        return topNLabels -> {
+            Bitmap boxBmp = pool.lease(w, h, Bitmap.Config.ARGB_8888);
+            boxCanvas.setBitmap(boxBmp);
+
+            boxCanvas.drawColor(Color.TRANSPARENT, PorterDuff.Mode.CLEAR);
+            Overlay.drawLabels(topNLabels, Color.GREEN, boxCanvas);
+            boxCanvas.setBitmap(null);
+
+            return boxBmp;
+        };
+    }
+
 
 }
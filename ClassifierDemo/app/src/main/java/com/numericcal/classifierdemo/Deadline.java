@@ -0,0 +1,109 @@
+package com.numericcal.classifierdemo;
+
+import android.util.Pair;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.reactivex.functions.Consumer;
+import io.reactivex.functions.Function;
+import io.reactivex.functions.Predicate;
+
+/**
+ * Per-pipeline latency budget. Frames get a deadline at the source and are dropped at the
+ * next stage boundary once they are older than the budget, so stale work does not hold up
+ * fresh frames and old labels never reach the screen.
+ */
+public class Deadline {
+    private static final String TAG = "AS.Deadline";
+
+    private final long budgetMs;
+    private final long budgetNs;
+    private final Map<String, AtomicLong> drops = new LinkedHashMap<>();
+    private volatile Consumer<Tags.MetaData> lateListener = null;
+
+    /**
+     * @param budgetMs - maximum frame age (source entry to stage boundary)
+     */
+    public Deadline(long budgetMs) {
+        this.budgetMs = budgetMs;
+        this.budgetNs = budgetMs * 1000000L;
+    }
+
+    /**
+     * Set the token deadline relative to its source entry time. Place right after srcTag.
+     */
+    public <T> Function<Tags.TTok<T>, Tags.TTok<T>> stamp() {
+        return ttok -> {
+            ttok.md.deadline = ttok.md.entryNs(0) + budgetNs;
+            return ttok;
+        };
+    }
+
+    /**
+     * Be told about every late frame, before it is released (e.g. FrameSampler::observe).
+     * @param listener - called on the dropping thread, null to stop
+     */
+    public void onLate(Consumer<Tags.MetaData> listener) {
+        this.lateListener = listener;
+    }
+
+    private synchronized AtomicLong counter(String stage) {
+        AtomicLong cnt = drops.get(stage);
+        if (cnt == null) {
+            cnt = new AtomicLong(0);
+            drops.put(stage, cnt);
+        }
+        return cnt;
+    }
+
+    /**
+     * Stage boundary check. Expired tokens are counted against the stage, reported to the
+     * late listener, released and recycled.
+     * @param stage - name of the stage about to run
+     */
+    public <T> Predicate<Tags.TTok<T>> check(String stage) {
+        AtomicLong cnt = counter(stage);
+        Function<Tags.TTok<T>, Tags.TTok<T>> release = Tags.release();
+        return ttok -> {
+            if (System.nanoTime() <= ttok.md.deadline) {
+                return true;
+            }
+            cnt.incrementAndGet();
+            Consumer<Tags.MetaData> listener = lateListener;
+            if (listener != null) {
+                listener.accept(ttok.md);
+            }
+            release.apply(ttok);
+            ttok.md.recycle();
+            return false;
+        };
+    }
+
+    /**
+     * @return drop counts per stage, in pipeline order, formatted for the timing table
+     */
+    public synchronized List<Pair<String, Float>> report() {
+        List<Pair<String, Float>> res = new ArrayList<>();
+        for (Map.Entry<String, AtomicLong> e: drops.entrySet()) {
+            res.add(new Pair<>("late@" + e.getKey(), (float) e.getValue().get()));
+        }
+        return res;
+    }
+
+    /**
+     * @return drops over all stages
+     */
+    public synchronized long dropped() {
+        long sum = 0;
+        for (AtomicLong cnt: drops.values()) {
+            sum += cnt.get();
+        }
+        return sum;
+    }
+
+    public long budget() { return budgetMs; }
+}
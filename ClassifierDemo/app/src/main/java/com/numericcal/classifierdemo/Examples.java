@@ -2,6 +2,7 @@ package com.numericcal.classifierdemo;
 
 import android.graphics.Bitmap;
 
+import io.fotoapparat.preview.Frame;
 import io.reactivex.Observable;
 import io.reactivex.ObservableTransformer;
 import io.reactivex.Single;
@@ -13,6 +14,7 @@ import com.numericcal.edge.Dnn;
 
 import org.json.JSONObject;
 
+import java.nio.FloatBuffer;
 import java.util.List;
 
 /**
@@ -20,78 +22,488 @@ import java.util.List;
  */
 public class Examples {
 
-    // this is to filter out input when the classifier is busy running
-    private static boolean chainRunning = false;
     private static final int IMAGE_MEAN = 128;
     private static final float IMAGE_STD = 128.0f;
     private static final int TOP_LABELS = 3;
+    private static final int CAMERA_ROTATION = 90;
+    // pooled input tensors kept per shape (MainActivity uses the same size)
+    static final int TENSOR_POOL_SIZE = 4;
+    private static final int BITMAP_POOL_SIZE = 4;
+    // frames allowed in flight: one in preprocessing while the previous one is in inference
+    // (MainActivity uses the same depth)
+    static final int PIPELINE_DEPTH = 2;
+    // frames older than this are dropped between stages (MainActivity uses the same budget)
+    static final long FRAME_BUDGET_MS = 400;
+    // stripes for the pixel loops, serial below Stripes.MIN_PIXELS
+    private static final Stripes PARALLEL = Stripes.perCore();
+    // EMA pole for the class probabilities, 0 disables smoothing
+    private static final float SMOOTHING = 0.6f;
+    private static final TensorPacker PACKER =
+            new TensorPacker(TensorPacker.Layout.HWC, false, IMAGE_MEAN, IMAGE_STD);
+    // PrepHub spec names, models agreeing on one share the input tensor
+    private static final String FLOAT_INPUT = "float32 HWC RGB 128/128";
+    private static final String DIRECT_INPUT = "direct float32 HWC RGB 128/128";
+    private static final String BYTE_INPUT = "uint8 HWC RGB";
 
     public static class MobileNetClassifier {
         private static final String TAG = "Ex.Classifier";
 
         public static Single<Observable<Tags.TTok<List<Classifier.ClassLabel>>>> classifyObjects(
                 Single<Dnn.Handle> classifier, Observable<Bitmap> inStream) {
+            return classifyObjects(classifier, inStream, new TensorPool(TENSOR_POOL_SIZE));
+        }
 
-            return classifier.map(handle -> {
-                chainRunning = false;
-                int dnnInputWidth = handle.info.inputShape.get(2);
-                int dnnInputHeight = handle.info.inputShape.get(1);
+        public static Single<Observable<Tags.TTok<List<Classifier.ClassLabel>>>> classifyObjects(
+                Single<Dnn.Handle> classifier, Observable<Bitmap> inStream, TensorPool pool) {
+            return classifyObjects(classifier, inStream, pool, new BitmapPool(BITMAP_POOL_SIZE),
+                    new Admission(PIPELINE_DEPTH), new Deadline(FRAME_BUDGET_MS));
+        }
 
-                int outputLen = handle.info.outputShape.get(1);
+        /**
+         * Classify a stream of Bitmaps. Source bitmaps are released to bmpPool once the frame
+         * is done (or dropped), so pooled feeds such as Camera.getFeed(.., pool) recycle them.
+         */
+        public static Single<Observable<Tags.TTok<List<Classifier.ClassLabel>>>> classifyObjects(
+                Single<Dnn.Handle> classifier, Observable<Bitmap> inStream,
+                TensorPool pool, BitmapPool bmpPool, Admission admission, Deadline deadline) {
+
+            return classifier.map(handle -> {
+                int dnnInputWidth = inputWidth(handle);
+                int dnnInputHeight = inputHeight(handle);
 
                 Classifier.ModelParams mp = new Classifier.ModelParams(handle);
 
                 Observable<Tags.TTok<List<Classifier.ClassLabel>>> stream = inStream
+                        // add thread/entry/exit time tagging
+                        .map(Tags.srcTag("source", bmpPool::release))
+                        .map(deadline.stamp())
+                        .filter(admission.admitTT())
+                        .observeOn(Schedulers.computation())
+                        // resize bitmap to fit the DNN input tensor
+                        .filter(deadline.check("scaling"))
+                        .compose(scaleTT(dnnInputWidth, dnnInputHeight, bmpPool))
+                        .observeOn(Schedulers.computation())
+                        // normalize and lay out in memory (float or uint8, depending on the model)
+                        .filter(deadline.check("tensorPrep"))
+                        .compose(prepAndInfer(handle, pool, deadline))
+                        .compose(labelsTT(handle, mp, SMOOTHING, deadline));
+
+                return stream;
+
+            });
+        }
+
+        /**
+         * Bulk classification of stored images, e.g. a gallery. Nothing is dropped for being
+         * late; float models run in batches (see Batcher), others one image per call. Pace the
+         * source (e.g. concatMap over files), images queue up otherwise. Scaled bitmaps are
+         * leased from bmpPool.
+         */
+        public static Single<Observable<Tags.TTok<List<Classifier.ClassLabel>>>> classifyBatched(
+                Single<Dnn.Handle> classifier, Observable<Bitmap> images,
+                TensorPool pool, BitmapPool bmpPool, Batcher batcher) {
+
+            return classifier.map(handle -> {
+                int dnnInputWidth = inputWidth(handle);
+                int dnnInputHeight = inputHeight(handle);
+
+                Classifier.ModelParams mp = new Classifier.ModelParams(handle);
+
+                Observable<Tags.TTok<Bitmap>> scaled = images
                         // add thread/entry/exit time tagging
                         .map(Tags.srcTag("source"))
-                        .filter(__->(!chainRunning))
-                        .map(setRunningFlag(true))
                         .observeOn(Schedulers.computation())
                         // resize bitmap to fit the DNN input tensor
-                        .compose(scaleTT(dnnInputWidth, dnnInputHeight))
+                        .compose(scaleTT(dnnInputWidth, dnnInputHeight, bmpPool));
+
+                Observable<Tags.TTok<float[]>> probs = (quantizedInput(handle) || directInput(handle))
+                        ? scaled.compose(prepAndInfer(handle, pool))
+                        : scaled.compose(classifierFloatPrep(pool))
+                                // one inference call per batch, if the model takes batches
+                                .compose(batcher.inferTT(handle));
+
+                // no smoothing, the images are unrelated
+                return probs.compose(labelsTT(handle, mp, 0.0f, null));
+
+            });
+        }
+
+        /**
+         * Same as classifyObjects, but the frames come from a hub shared with other models.
+         * Models with the same input spec share the scaled bitmap and the tensor.
+         */
+        public static Single<Observable<Tags.TTok<List<Classifier.ClassLabel>>>> classifyShared(
+                Single<Dnn.Handle> classifier, PrepHub hub,
+                TensorPool pool, Admission admission, Deadline deadline) {
+
+            return classifier.map(handle -> {
+                Classifier.ModelParams mp = new Classifier.ModelParams(handle);
+
+                return sharedInfer(handle, hub, pool, admission, deadline)
+                        .compose(labelsTT(handle, mp, SMOOTHING, deadline));
+            });
+        }
+
+        /**
+         * Hub version of prepAndInfer: ask for the tensor type the model declares.
+         */
+        public static Observable<Tags.TTok<float[]>> sharedInfer(
+                Dnn.Handle handle, PrepHub hub, TensorPool pool, Admission admission, Deadline deadline) {
+            int dnnInputWidth = inputWidth(handle);
+            int dnnInputHeight = inputHeight(handle);
+
+            if (quantizedInput(handle)) {
+                return hub.feed(new PrepHub.Spec<>(BYTE_INPUT, dnnInputWidth, dnnInputHeight,
+                        Utils.bmpToByte_HWC(false, pool, PARALLEL), pool::release), admission, deadline)
+                        .compose(infer(handle, deadline));
+            }
+            if (directInput(handle)) {
+                return hub.feed(new PrepHub.Spec<>(DIRECT_INPUT, dnnInputWidth, dnnInputHeight,
+                        Utils.bmpToFloatBuffer(PACKER, pool, PARALLEL), pool::release), admission, deadline)
+                        .compose(infer(handle, deadline));
+            }
+            return hub.feed(new PrepHub.Spec<>(FLOAT_INPUT, dnnInputWidth, dnnInputHeight,
+                    Utils.bmpToFloat(PACKER, pool, PARALLEL), pool::release), admission, deadline)
+                    .compose(infer(handle, deadline));
+        }
+
+        /**
+         * Same as classifyObjects, but starting from raw camera frames. Conversion, rotation,
+         * cropping, scaling and normalization happen in a single fused pass.
+         */
+        public static Single<Observable<Tags.TTok<List<Classifier.ClassLabel>>>> classifyFrames(
+                Single<Dnn.Handle> classifier, Observable<Frame> inStream) {
+            return classifyFrames(classifier, inStream, new TensorPool(TENSOR_POOL_SIZE));
+        }
+
+        public static Single<Observable<Tags.TTok<List<Classifier.ClassLabel>>>> classifyFrames(
+                Single<Dnn.Handle> classifier, Observable<Frame> inStream, TensorPool pool) {
+
+            Admission admission = new Admission(PIPELINE_DEPTH);
+            return classifier.map(handle -> {
+                int dnnInputWidth = inputWidth(handle);
+                int dnnInputHeight = inputHeight(handle);
+
+                Classifier.ModelParams mp = new Classifier.ModelParams(handle);
+
+                Observable<Tags.TTok<List<Classifier.ClassLabel>>> stream = inStream
+                        // add thread/entry/exit time tagging
+                        .map(Tags.srcTag("source"))
+                        .filter(admission.admitTT())
+                        // sample while the camera still owns the buffer
+                        .compose(fusedFloatPrep(dnnInputWidth, dnnInputHeight, pool))
                         .observeOn(Schedulers.computation())
-                        // normalize and lay out in memory
-                        .compose(classifierFloatPrep())
                         .compose(handle.runInference(Tags.extract(), Tags.combine("classifier")))
-                        // extract the top N labels
-                        .compose(extractTopNClasses(TOP_LABELS, mp.labels,outputLen))
-                        .map(setRunningFlag(false));
+                        .compose(labelsTT(handle, mp, 0.0f, null));
 
                 return stream;
 
             });
         }
-        public static <T> Function<Tags.TTok<T>,Tags.TTok<T>> setRunningFlag(boolean flag)
-        {
-            return src ->
-            {
-                chainRunning = flag;
-                return src;
+
+        public static Single<Observable<Tags.TTok<List<Classifier.ClassLabel>>>> classifyFrames(
+                Single<Dnn.Handle> classifier, Observable<Frame> inStream,
+                TensorPool pool, FrameRing ring) {
+            return classifyFrames(classifier, inStream, pool, ring, new Admission(PIPELINE_DEPTH),
+                    new Deadline(FRAME_BUDGET_MS));
+        }
+
+        /**
+         * Same as classifyFrames, but admitted frames are copied into an ingress ring so the
+         * fused stage can run off the camera thread. inStream must emit on the camera thread
+         * (Camera.getFrames); rejected frames are never copied. The NV21 slot is released as
+         * soon as the fused stage has sampled it. The ring should have more slots than the
+         * admission depth. Frames older than the deadline budget are dropped between stages.
+         */
+        public static Single<Observable<Tags.TTok<List<Classifier.ClassLabel>>>> classifyFrames(
+                Single<Dnn.Handle> classifier, Observable<Frame> inStream,
+                TensorPool pool, FrameRing ring, Admission admission, Deadline deadline) {
+            return classifyFrames(classifier, inStream, pool, ring, admission, deadline, null);
+        }
+
+        /**
+         * Same as above, but frames showing the same scene as the last inferred one are answered
+         * from the cache instead (without taking an admission permit).
+         * @param cache - scene cache, null to infer every frame
+         */
+        public static Single<Observable<Tags.TTok<List<Classifier.ClassLabel>>>> classifyFrames(
+                Single<Dnn.Handle> classifier, Observable<Frame> inStream,
+                TensorPool pool, FrameRing ring, Admission admission, Deadline deadline,
+                SceneCache<List<Classifier.ClassLabel>> cache) {
+
+            return classifier.map(handle -> {
+                Classifier.ModelParams mp = new Classifier.ModelParams(handle);
+
+                ObservableTransformer<Tags.TTok<Frame>, Tags.TTok<List<Classifier.ClassLabel>>> infer =
+                        inferRing(handle, mp, pool, ring, admission, deadline);
+
+                Observable<Tags.TTok<Frame>> tagged = inStream
+                        // add thread/entry/exit time tagging
+                        .map(Tags.srcTag("source"))
+                        .map(deadline.stamp());
+
+                if (cache == null) {
+                    return tagged.compose(infer);
+                }
+
+                return tagged
+                        // same scene as the cached result?
+                        .map(cache.checkTT())
+                        .publish(shared -> Observable.merge(
+                                shared.filter(ttok -> ttok.md.cached())
+                                        .compose(cache.replayTT())
+                                        // off the camera thread, like the inferred results
+                                        .observeOn(Schedulers.computation()),
+                                shared.filter(ttok -> !ttok.md.cached())
+                                        .compose(infer)
+                                        .map(cache.storeTT())));
+            });
+        }
+
+        /**
+         * Admission through top N labels for camera frames, still on the camera thread.
+         */
+        static ObservableTransformer<Tags.TTok<Frame>, Tags.TTok<List<Classifier.ClassLabel>>> inferRing(
+                Dnn.Handle handle, Classifier.ModelParams mp,
+                TensorPool pool, FrameRing ring, Admission admission, Deadline deadline) {
+            return upstream -> upstream
+                    .filter(admission.admitTT())
+                    // copy only admitted frames, the camera buffer is reused after the callback
+                    .filter(ring.offerTT())
+                    .observeOn(Schedulers.computation())
+                    .filter(deadline.check("nv21prep"))
+                    // float or uint8 tensors, depending on the model
+                    .compose(prepAndInfer(handle, pool, ring, deadline))
+                    .compose(labelsTT(handle, mp, SMOOTHING, deadline));
+        }
+
+        /**
+         * The end every classifier chain shares: smoothing, top N labels and handing tensors
+         * and permits back.
+         * @param smoothing - EMA pole for the class probabilities, 0 for none
+         * @param deadline - drop late frames before label extraction, null for none
+         */
+        static ObservableTransformer<Tags.TTok<float[]>, Tags.TTok<List<Classifier.ClassLabel>>> labelsTT(
+                Dnn.Handle handle, Classifier.ModelParams mp, float smoothing, Deadline deadline) {
+
+            int outputLen = outputLen(handle);
+
+            return upstream -> {
+                Observable<Tags.TTok<float[]>> probs = upstream;
+                if (smoothing > 0.0f) {
+                    // steady the labels across frames
+                    probs = probs.compose(smoothTT(Smoother.ema(outputLen, smoothing)));
+                }
+                if (deadline != null) {
+                    probs = probs.filter(deadline.check("extractTopN"));
+                }
+                return probs
+                        // extract the top N labels
+                        .compose(extractTopNClasses(TOP_LABELS, mp.labels, outputLen))
+                        // hand tensors and the admission permit back
+                        .map(Tags.release());
+            };
+        }
+
+        public static int inputWidth(Dnn.Handle handle) {
+            return handle.info.inputShape.get(2);
+        }
+
+        public static int inputHeight(Dnn.Handle handle) {
+            return handle.info.inputShape.get(1);
+        }
+
+        public static int outputLen(Dnn.Handle handle) {
+            return handle.info.outputShape.get(1);
+        }
+
+        /**
+         * Does the model take raw uint8 input? Read from the model parameters, default float.
+         *
+         * Assumes the engine takes a byte[] input tensor for such models. Only float[] inputs
+         * are known to work with edge 0.20.0-beta (runInference is generic in its input, so a
+         * wrong type only shows at run time), hence this stays opt-in per model.
+         */
+        public static boolean quantizedInput(Dnn.Handle handle) {
+            JSONObject params = handle.info.params;
+            return params != null && "uint8".equals(params.optString("input_type", "float32"));
+        }
+
+        /**
+         * Can the engine take a native-ordered direct buffer? Lets the input tensor stay off
+         * the Java heap and skip the JNI copy. Read from the model parameters, default off.
+         * Like quantizedInput, this assumes engine support that is unverified for edge
+         * 0.20.0-beta.
+         */
+        public static boolean directInput(Dnn.Handle handle) {
+            JSONObject params = handle.info.params;
+            return params != null && params.optBoolean("direct_input", false);
+        }
+
+        /**
+         * Hop threads, drop late frames and run inference on whatever tensor type came in.
+         * Tensors other than float[] rely on engine support (see quantizedInput).
+         * @param deadline - frame budget, null to never drop
+         */
+        public static <T> ObservableTransformer<Tags.TTok<T>, Tags.TTok<float[]>>
+        infer(Dnn.Handle handle, Deadline deadline) {
+            return upstream -> {
+                // let the next frame prepare while this one runs through the DNN
+                Observable<Tags.TTok<T>> hopped = upstream.observeOn(Schedulers.computation());
+                if (deadline != null) {
+                    hopped = hopped.filter(deadline.check("classifier"));
+                }
+                return hopped.compose(handle.runInference(Tags.extract(), Tags.combine("classifier")));
             };
         }
 
+        /**
+         * Inference without a budget, for offline work where nothing is late.
+         */
+        public static <T> ObservableTransformer<Tags.TTok<T>, Tags.TTok<float[]>>
+        infer(Dnn.Handle handle) {
+            return infer(handle, null);
+        }
+
+        /**
+         * Sample the ring frame into the tensor type the model declares and run inference on
+         * it. uint8 models skip normalization and move a quarter of the bytes.
+         */
+        public static ObservableTransformer<Tags.TTok<Frame>, Tags.TTok<float[]>>
+        prepAndInfer(Dnn.Handle handle, TensorPool pool, FrameRing ring, Deadline deadline) {
+            int dnnInputWidth = inputWidth(handle);
+            int dnnInputHeight = inputHeight(handle);
+
+            if (quantizedInput(handle)) {
+                return upstream -> upstream
+                        .compose(fusedBytePrep(dnnInputWidth, dnnInputHeight, pool, ring))
+                        .compose(infer(handle, deadline));
+            }
+            if (directInput(handle)) {
+                return upstream -> upstream
+                        .compose(fusedDirectPrep(dnnInputWidth, dnnInputHeight, pool, ring))
+                        .compose(infer(handle, deadline));
+            }
+            return upstream -> upstream
+                    .compose(fusedFloatPrep(dnnInputWidth, dnnInputHeight, pool, ring))
+                    .compose(infer(handle, deadline));
+        }
+
+        /**
+         * Bitmap version of the above, for scaled bitmaps.
+         * @param deadline - frame budget, null to never drop
+         */
+        public static ObservableTransformer<Tags.TTok<Bitmap>, Tags.TTok<float[]>>
+        prepAndInfer(Dnn.Handle handle, TensorPool pool, Deadline deadline) {
+            if (quantizedInput(handle)) {
+                return upstream -> upstream
+                        .compose(classifierBytePrep(pool))
+                        .compose(infer(handle, deadline));
+            }
+            if (directInput(handle)) {
+                return upstream -> upstream
+                        .compose(classifierDirectPrep(pool))
+                        .compose(infer(handle, deadline));
+            }
+            return upstream -> upstream
+                    .compose(classifierFloatPrep(pool))
+                    .compose(infer(handle, deadline));
+        }
+
+        /**
+         * Bitmap version without a budget, for offline work.
+         */
+        public static ObservableTransformer<Tags.TTok<Bitmap>, Tags.TTok<float[]>>
+        prepAndInfer(Dnn.Handle handle, TensorPool pool) {
+            return prepAndInfer(handle, pool, null);
+        }
 
         public static ObservableTransformer<Tags.TTok<Bitmap>, Tags.TTok<Bitmap>>
         scaleTT(int width, int height) {
-            return Utils.mkOT(Camera.scaleTo(width, height), Tags.extract(), Tags.combine("scaling"));
+            return Utils.mkTT(Camera.scaleTo(width, height), "scaling");
+        }
+
+        public static ObservableTransformer<Tags.TTok<Bitmap>, Tags.TTok<Bitmap>>
+        scaleTT(int width, int height, BitmapPool pool) {
+            return Utils.mkTT(Camera.scaleTo(width, height, pool), "scaling", pool::release);
         }
 
 
         public static ObservableTransformer<Tags.TTok<Bitmap>, Tags.TTok<float[]>>
         classifierFloatPrep() {
-            return Utils.mkOT(Utils.bmpToFloat_HWC_RGB(IMAGE_MEAN, IMAGE_STD), Tags.extract(), Tags.combine("bmp2float"));
+            return Utils.mkTT(Utils.bmpToFloat_HWC_RGB(IMAGE_MEAN, IMAGE_STD), "bmp2float");
+        }
+
+        public static ObservableTransformer<Tags.TTok<Bitmap>, Tags.TTok<float[]>>
+        classifierFloatPrep(TensorPool pool) {
+            return Utils.mkTT(Utils.bmpToFloat(PACKER, pool, PARALLEL), "bmp2float", pool::release);
+        }
+
+        public static ObservableTransformer<Tags.TTok<Frame>, Tags.TTok<float[]>>
+        fusedFloatPrep(int width, int height, TensorPool pool) {
+            Yuv.Sampling smp = new Yuv.Sampling(width, height, CAMERA_ROTATION, true, false);
+            return Utils.mkTT(Yuv.nv21ToFloat(smp, PACKER, pool, PARALLEL), "nv21prep", pool::release);
+        }
+
+        public static ObservableTransformer<Tags.TTok<Frame>, Tags.TTok<float[]>>
+        fusedFloatPrep(int width, int height, TensorPool pool, FrameRing ring) {
+            Yuv.Sampling smp = new Yuv.Sampling(width, height, CAMERA_ROTATION, true, false);
+            return Utils.mkTT(ring.consume(Yuv.nv21ToFloat(smp, PACKER, pool, PARALLEL)), "nv21prep", pool::release);
+        }
+
+        public static ObservableTransformer<Tags.TTok<Bitmap>, Tags.TTok<FloatBuffer>>
+        classifierDirectPrep(TensorPool pool) {
+            return Utils.mkTT(Utils.bmpToFloatBuffer(PACKER, pool, PARALLEL), "bmp2float", pool::release);
+        }
+
+        public static ObservableTransformer<Tags.TTok<Frame>, Tags.TTok<FloatBuffer>>
+        fusedDirectPrep(int width, int height, TensorPool pool, FrameRing ring) {
+            Yuv.Sampling smp = new Yuv.Sampling(width, height, CAMERA_ROTATION, true, false);
+            return Utils.mkTT(ring.consume(Yuv.nv21ToFloatBuffer(smp, PACKER, pool, PARALLEL)), "nv21prep", pool::release);
+        }
+
+        public static ObservableTransformer<Tags.TTok<Bitmap>, Tags.TTok<byte[]>>
+        classifierBytePrep(TensorPool pool) {
+            return Utils.mkTT(Utils.bmpToByte_HWC(false, pool, PARALLEL), "bmp2byte", pool::release);
+        }
+
+        public static ObservableTransformer<Tags.TTok<Frame>, Tags.TTok<byte[]>>
+        fusedBytePrep(int width, int height, TensorPool pool, FrameRing ring) {
+            Yuv.Sampling smp = new Yuv.Sampling(width, height, CAMERA_ROTATION, true, false);
+            return Utils.mkTT(ring.consume(Yuv.nv21ToByte_HWC(smp, false, pool, PARALLEL)), "nv21prep", pool::release);
+        }
+
+        /**
+         * Smooth the output vector in place. The smoother keeps state, one per stream.
+         */
+        public static ObservableTransformer<Tags.TTok<float[]>, Tags.TTok<float[]>>
+        smoothTT(Smoother smoother) {
+            return Utils.mkTT(smoother, "smoothing");
         }
 
         public static ObservableTransformer<Tags.TTok<float[]>, Tags.TTok<List<Classifier.ClassLabel>>>
         extractTopNClasses(int topN, List<String> labels, int outputLen) {
-            return Utils.mkOT(Classifier.findMostLikelyClasses(topN, labels, outputLen), Tags.extract(), Tags.combine("extractTopN"));
+            return Utils.mkTT(Classifier.findMostLikelyClasses(topN, labels, outputLen), "extractTopN");
+        }
+
+        public static ObservableTransformer<Tags.TTok<float[]>, Tags.TTok<List<Classifier.ClassLabel>>>
+        extractTopNClasses(int topN, List<String> labels, int outputLen, float threshold) {
+            return Utils.mkTT(Classifier.findMostLikelyClasses(topN, labels, outputLen, threshold), "extractTopN");
         }
 
 
 
         public static ObservableTransformer<Tags.TTok<List<Classifier.ClassLabel>>, Tags.TTok<Bitmap>>
         drawLabels(int w, int h) {
-            return Utils.mkOT(Classifier.displayLabels(w, h), Tags.extract(), Tags.combine("labeling"));
+            return Utils.mkTT(Classifier.displayLabels(w, h), "labeling");
+        }
+
+        /**
+         * Pooled overlays. The consumer releases each overlay once it is no longer displayed.
+         */
+        public static ObservableTransformer<Tags.TTok<List<Classifier.ClassLabel>>, Tags.TTok<Bitmap>>
+        drawLabels(int w, int h, BitmapPool pool) {
+            return Utils.mkTT(Classifier.displayLabels(w, h, pool), "labeling");
         }
 
     }
@@ -0,0 +1,144 @@
+package com.numericcal.classifierdemo;
+
+/**
+ * Float kernels for output post-processing (softmax, sigmoid). exp is computed in float with
+ * range reduction to [-ln2/2, ln2/2] and a degree 6 polynomial, relative error below 3e-7
+ * (about 2 ulp) over the whole float range, instead of a double Math.exp call per element.
+ * exp is small enough to be inlined, and the array loops are plain counted loops over one
+ * or two arrays that the JIT/ART can unroll; the max and scaling passes also vectorize.
+ */
+public class FastMath {
+    private static final String TAG = "AS.FastMath";
+
+    private static final float LOG2E = 1.44269504f;
+    // ln2 split in a high part exact in float and a low correction
+    private static final float LN2_HI = 0.693145752f;
+    private static final float LN2_LO = 1.42860677e-6f;
+
+    // below this exp underflows to a denormal, above it overflows
+    private static final float EXP_MIN = -87.33654f;
+    private static final float EXP_MAX = 88.72283f;
+
+    /**
+     * e^x in float precision. Returns 0 below about -87.3 and +Inf above about 88.7.
+     * @param x - exponent
+     * @return e^x
+     */
+    public static float exp(float x) {
+        if (x < EXP_MIN) return 0.0f;
+        if (x > EXP_MAX) return Float.POSITIVE_INFINITY;
+
+        // x = n*ln2 + r
+        float fn = (float) Math.floor(x * LOG2E + 0.5f);
+        float r = x - fn * LN2_HI - fn * LN2_LO;
+
+        float p = 1.0f + r * (1.0f + r * (0.5f + r * (1.6666667e-1f
+                + r * (4.1666668e-2f + r * (8.3333338e-3f + r * 1.3888889e-3f)))));
+
+        // 2^n built directly from the exponent bits
+        int n = (int) fn;
+        if (n > 127) {
+            return p * 2.0f * Float.intBitsToFloat(254 << 23);
+        }
+        return p * Float.intBitsToFloat((n + 127) << 23);
+    }
+
+    /**
+     * Softmax on from[fromOffset, fromOffset+len) into to[toOffset, ...). In place is fine.
+     * @param len - length of the subarray
+     * @param fromOffset - starting offset for reading
+     * @param from - read array
+     * @param toOffset - starting offset for writing
+     * @param to - write array
+     */
+    public static void softmax(int len, int fromOffset, float[] from, int toOffset, float[] to) {
+        float maxVal = Utils.max(from, fromOffset, fromOffset + len);
+
+        // exp, store and sum fused in one pass; the exponents are all <= 0
+        float acc = 0.0f;
+        for (int k = 0; k < len; k++) {
+            float curr = exp(from[fromOffset + k] - maxVal);
+            to[toOffset + k] = curr;
+            acc += curr;
+        }
+
+        float inv = 1.0f / acc;
+        for (int k = 0; k < len; k++) {
+            to[toOffset + k] *= inv;
+        }
+    }
+
+    /**
+     * log(sum(e^x)) over arr[start, stop) in a single online pass (running max and sum,
+     * rescaled when the max moves), so nothing is written. -Inf entries contribute nothing,
+     * so an empty or all -Inf range gives -Inf; a NaN anywhere in the range gives NaN.
+     * @param arr - logits
+     * @param start - start index (inclusive)
+     * @param stop - stop index (exclusive)
+     * @return log-sum-exp of the range
+     */
+    public static float logSumExp(float[] arr, int start, int stop) {
+        float m = Float.NEGATIVE_INFINITY;
+        float s = 0.0f;
+        for (int k = start; k < stop; k++) {
+            float x = arr[k];
+            if (x > m) {
+                s = s * exp(m - x) + 1.0f;
+                m = x;
+            } else if (x > Float.NEGATIVE_INFINITY) {
+                s += exp(x - m);
+            } else if (x != x) {
+                return Float.NaN;
+            }
+        }
+        return m + (float) Math.log(s);
+    }
+
+    /**
+     * Partial softmax: find the top K logits and normalize only those, using the log-sum-exp
+     * of the full range. Cost is one exp per element plus K, and nothing is written to logits.
+     * If the log-sum-exp is not defined (all -Inf, or NaN logits) nothing is selected.
+     * @param logits - raw scores (not modified)
+     * @param start - start index (inclusive)
+     * @param stop - stop index (exclusive)
+     * @param threshold - minimum probability to report
+     * @param top - result; scores are probabilities on return
+     * @return top, for chaining
+     */
+    public static TopK partialSoftmax(float[] logits, int start, int stop, float threshold, TopK top) {
+        float lse = logSumExp(logits, start, stop);
+        if (!(lse > Float.NEGATIVE_INFINITY)) {
+            return top.select(logits, start, start, Float.NEGATIVE_INFINITY);
+        }
+
+        // p >= threshold <=> x >= lse + log(threshold)
+        float logThreshold = threshold > 0.0f ? lse + (float) Math.log(threshold) : Float.NEGATIVE_INFINITY;
+        top.select(logits, start, stop, logThreshold);
+
+        for (int k = 0; k < top.size(); k++) {
+            top.setScore(k, exp(top.score(k) - lse));
+        }
+        return top;
+    }
+
+    /**
+     * Elementwise sigmoid(x) = 1/(1 + e^-x).
+     * @param inp - input
+     * @param inOffset - first input element
+     * @param outp - output (may be the input)
+     * @param outOffset - first output element
+     * @param len - number of elements
+     */
+    public static void sigmoid(float[] inp, int inOffset, float[] outp, int outOffset, int len) {
+        for (int k = 0; k < len; k++) {
+            outp[outOffset + k] = 1.0f / (1.0f + exp(-inp[inOffset + k]));
+        }
+    }
+
+    /**
+     * Scalar sigmoid(x) = 1/(1 + e^-x).
+     */
+    public static float sigmoid(float x) {
+        return 1.0f / (1.0f + exp(-x));
+    }
+}
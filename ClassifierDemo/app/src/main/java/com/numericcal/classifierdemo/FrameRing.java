@@ -0,0 +1,147 @@
+package com.numericcal.classifierdemo;
+
+import io.fotoapparat.preview.Frame;
+import io.reactivex.functions.Function;
+import io.reactivex.functions.Predicate;
+
+/**
+ * Fixed-size ring of preallocated NV21 buffers between the camera and the chain. An admitted
+ * camera frame is copied into a free slot so Fotoapparat gets its preview buffer back right
+ * away, and the chain can work on the copy off the camera thread. Admission comes first (see
+ * offerTT), so at most the admission depth of slots are ever taken; with a ring larger than
+ * that a copy always finds a free slot. If none is free the frame is dropped.
+ *
+ * Slot life cycle: FREE -> (offer) BUSY -> (release) FREE.
+ */
+public class FrameRing {
+    private static final String TAG = "AS.FrameRing";
+
+    private static class Slot {
+        byte[] data;
+        Frame frame;
+        boolean busy = false;
+    }
+
+    private final Slot[] slots;
+    private long offered = 0;
+    private long drops = 0;
+
+    /**
+     * @param size - number of NV21 buffers to keep
+     */
+    public FrameRing(int size) {
+        slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+        }
+    }
+
+    /**
+     * Copy a camera frame into the ring. Called on the camera frame processor thread.
+     * @param f - camera frame (its buffer goes back to the camera after the callback returns)
+     * @return a frame backed by a ring slot, or null if every slot is being processed
+     */
+    public synchronized Frame offer(Frame f) {
+        byte[] image = f.getImage();
+        offered += 1;
+
+        Slot target = null;
+        for (Slot s: slots) {
+            if (!s.busy) {
+                target = s;
+                break;
+            }
+        }
+        if (target == null) {
+            drops += 1;
+            return null;
+        }
+
+        if (target.data == null || target.data.length != image.length) {
+            // first frame (or preview size change): allocate every free slot at once
+            for (Slot s: slots) {
+                if (!s.busy) s.data = new byte[image.length];
+            }
+        }
+        System.arraycopy(image, 0, target.data, 0, image.length);
+        target.frame = new Frame(f.getSize(), target.data, f.getRotation());
+        target.busy = true;
+
+        return target.frame;
+    }
+
+    private Slot find(Frame f) {
+        for (Slot s: slots) {
+            if (s.frame == f) return s;
+        }
+        return null;
+    }
+
+    /**
+     * Hand the slot back. Unknown or already released frames are ignored.
+     * @param f - frame returned by offer
+     */
+    public synchronized void release(Frame f) {
+        Slot s = find(f);
+        if (s != null) {
+            s.busy = false;
+        }
+    }
+
+    /**
+     * Copy the camera frame of a tagged token into the ring. The token carries the ring copy
+     * from here on and releases the slot with the token. Place after admission and before the
+     * first thread hop (the camera buffer is only valid during the frame callback). Frames
+     * finding no free slot are released and dropped.
+     */
+    public Predicate<Tags.TTok<Frame>> offerTT() {
+        Function<Tags.TTok<Frame>, Tags.TTok<Frame>> release = Tags.release();
+        return ttok -> {
+            Frame copy = offer(ttok.token);
+            if (copy == null) {
+                release.apply(ttok);
+                ttok.md.recycle();
+                return false;
+            }
+            ttok.token = copy;
+            ttok.md.releases.add(() -> release(copy));
+            return true;
+        };
+    }
+
+    /**
+     * Wrap a conversion so the slot is released as soon as the NV21 data has been consumed.
+     * @param fn - conversion reading the frame
+     * @return a function object Frame -> T
+     */
+    public <T> Function<Frame, T> consume(Function<Frame, T> fn) {
+        return f -> {
+            try {
+                return fn.apply(f);
+            } finally {
+                release(f);
+            }
+        };
+    }
+
+    /**
+     * @return number of slots holding a frame
+     */
+    public synchronized int occupancy() {
+        int cnt = 0;
+        for (Slot s: slots) {
+            if (s.busy) cnt += 1;
+        }
+        return cnt;
+    }
+
+    public synchronized long offered() { return offered; }
+    public synchronized long drops() { return drops; }
+    public int size() { return slots.length; }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("occupancy: %d/%d offered: %d drops: %d",
+                occupancy(), slots.length, offered, drops);
+    }
+}
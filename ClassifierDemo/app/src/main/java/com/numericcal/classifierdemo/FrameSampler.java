@@ -0,0 +1,124 @@
+package com.numericcal.classifierdemo;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.reactivex.Observable;
+import io.reactivex.functions.Function;
+import io.reactivex.functions.Predicate;
+import io.reactivex.subjects.BehaviorSubject;
+
+/**
+ * Closed-loop camera sampling. Every finished frame reports its age (source entry to the end
+ * of the chain), and so does every frame dropped as late (see Deadline.onLate). With at most
+ * depth frames in flight, age / depth is the time per frame of the bottleneck stage (Little's
+ * law), and the camera gate lets frames through no faster than that, so frames that would be
+ * dropped downstream are never copied or converted. The age is known for every token, traced
+ * or not, so pacing keeps up with the pipeline under sampled tracing and overload alike.
+ *
+ * The interval follows the (low-passed) bottleneck time within [1/maxFps, 1/minFps] with
+ * hysteresis (Utils.updateLatency): it goes up right away when the pipeline slows down, and
+ * only comes back down once the pipeline is faster by more than the hysteresis margin.
+ */
+public class FrameSampler {
+    private static final String TAG = "AS.FrameSampler";
+
+    // weight of the newest measurement in the low-pass filter
+    private static final float GAIN = 0.3f;
+
+    private final int depth;
+    private final long minIntervalMs;
+    private final long maxIntervalMs;
+    private final long hysteresisMs;
+
+    private final AtomicLong interval;
+    private final BehaviorSubject<Long> intervals;
+    private float filtered = -1.0f;
+
+    private volatile long lastPass = 0;
+    private final AtomicLong passed = new AtomicLong(0);
+    private final AtomicLong skipped = new AtomicLong(0);
+
+    /**
+     * @param minFps - never sample slower than this
+     * @param maxFps - never sample faster than this
+     * @param hysteresisMs - speed up only when the bottleneck drops by more than this
+     * @param depth - frames allowed in flight (see Admission)
+     */
+    public FrameSampler(float minFps, float maxFps, long hysteresisMs, int depth) {
+        this.depth = Math.max(1, depth);
+        this.minIntervalMs = (long) (1000.0f / maxFps);
+        this.maxIntervalMs = (long) (1000.0f / minFps);
+        this.hysteresisMs = hysteresisMs;
+        this.interval = new AtomicLong(minIntervalMs);
+        this.intervals = BehaviorSubject.createDefault(minIntervalMs);
+    }
+
+    /**
+     * Feed the age of a finished (or late) frame. Scene cache hits skip inference and are
+     * ignored.
+     */
+    public void observe(Tags.MetaData md) {
+        if (md.cached()) return;
+        update((System.nanoTime() - md.entryNs(0)) / 1000000L);
+    }
+
+    private synchronized void update(long ageMs) {
+        float lat = (float) ageMs / depth;
+        filtered = (filtered < 0) ? lat : (1.0f - GAIN) * filtered + GAIN * lat;
+
+        long target = Math.max(minIntervalMs, Math.min(maxIntervalMs, (long) filtered));
+        Utils.updateLatency(target, interval, hysteresisMs, intervals);
+    }
+
+    /**
+     * Observe tokens as they pass by. Place at the end of the chain, after the last deadline
+     * check (late frames are reported by the Deadline) and before the metadata is recycled.
+     */
+    public <T> Function<Tags.TTok<T>, Tags.TTok<T>> observeTT() {
+        return ttok -> {
+            observe(ttok.md);
+            return ttok;
+        };
+    }
+
+    /**
+     * Camera side gate. Called from a single (camera) thread.
+     * @return true for at most one item per current interval
+     */
+    public <T> Predicate<T> gate() {
+        return __ -> {
+            long now = System.nanoTime();
+            if (now - lastPass >= interval.get() * 1000000L) {
+                lastPass = now;
+                passed.incrementAndGet();
+                return true;
+            }
+            skipped.incrementAndGet();
+            return false;
+        };
+    }
+
+    /**
+     * @return current sampling interval in ms
+     */
+    public long intervalMs() { return interval.get(); }
+
+    /**
+     * @return current sampling rate
+     */
+    public float fps() { return 1000.0f / interval.get(); }
+
+    /**
+     * @return sampling interval (ms) changes, starting with the current one
+     */
+    public Observable<Long> intervals() { return intervals; }
+
+    public long passed() { return passed.get(); }
+    public long skipped() { return skipped.get(); }
+
+    @Override
+    public String toString() {
+        return String.format("interval: %d ms (%.1f fps) passed: %d skipped: %d",
+                interval.get(), fps(), passed.get(), skipped.get());
+    }
+}
@@ -0,0 +1,106 @@
+package com.numericcal.classifierdemo;
+
+import java.util.Arrays;
+
+/**
+ * Log-bucketed latency histogram (ns). Each power of two is split into 8 linear sub-buckets,
+ * so any recorded value is within 1/16 (about 6%) of its bucket midpoint, from 1 ns to the
+ * full long range, in under 2 KB. Histograms with the same layout merge by adding counts, so
+ * per-thread histograms can be combined into per-stage ones.
+ *
+ * Not thread safe. Concurrent readers of a histogram with a single writer see a slightly
+ * stale but usable view.
+ */
+public class LatencyHistogram {
+    private static final String TAG = "AS.LatencyHistogram";
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB;
+
+    private final int[] counts = new int[BUCKETS];
+    private long count = 0;
+    private long max = 0;
+
+    static int bucket(long ns) {
+        if (ns < SUB) {
+            return (int) Math.max(0, ns);
+        }
+        int e = 63 - Long.numberOfLeadingZeros(ns);
+        int m = (int) (ns >>> (e - SUB_BITS)) & (SUB - 1);
+        return (e - SUB_BITS + 1) * SUB + m;
+    }
+
+    static long lowerBound(int bucket) {
+        if (bucket < SUB) {
+            return bucket;
+        }
+        int e = bucket / SUB + SUB_BITS - 1;
+        int m = bucket % SUB;
+        return (long) (SUB + m) << (e - SUB_BITS);
+    }
+
+    static long width(int bucket) {
+        if (bucket < SUB) {
+            return 1;
+        }
+        int e = bucket / SUB + SUB_BITS - 1;
+        return 1L << (e - SUB_BITS);
+    }
+
+    /**
+     * @param ns - latency in ns (negative values count as 0)
+     */
+    public void record(long ns) {
+        counts[bucket(ns)] += 1;
+        count += 1;
+        if (ns > max) max = ns;
+    }
+
+    /**
+     * Add another histogram's counts to this one.
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        if (other.max > max) max = other.max;
+    }
+
+    public void reset() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        max = 0;
+    }
+
+    public long count() { return count; }
+
+    public long max() { return max; }
+
+    /**
+     * @param q - quantile in [0, 1], e.g. 0.99
+     * @return latency in ns (bucket midpoint, capped at the max), 0 when empty
+     */
+    public long percentile(double q) {
+        long total = 0;
+        for (int c: counts) total += c;
+        if (total == 0) return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(q * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(max, lowerBound(i) + width(i) / 2);
+            }
+        }
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("n: %d p50: %.2f p90: %.2f p99: %.2f max: %.2f ms", count,
+                percentile(0.5) * 1e-6, percentile(0.9) * 1e-6, percentile(0.99) * 1e-6, max * 1e-6);
+    }
+}
@@ -15,19 +15,59 @@ import com.tbruyelle.rxpermissions2.RxPermissions;
 import com.uber.autodispose.AutoDispose;
 import com.uber.autodispose.android.lifecycle.AndroidLifecycleScopeProvider;
 
+import io.fotoapparat.preview.Frame;
 import io.fotoapparat.view.CameraView;
 import io.reactivex.Completable;
 
 import io.reactivex.Observable;
 import io.reactivex.Single;
 import io.reactivex.android.schedulers.AndroidSchedulers;
+import io.reactivex.schedulers.Schedulers;
 
 import com.numericcal.edge.Dnn;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 
 public class MainActivity extends AppCompatActivity {
     private static final String TAG = "AS.Main";
+    // frames allowed in flight: one in preprocessing while the previous one is in inference
+    private static final int PIPELINE_DEPTH = Examples.PIPELINE_DEPTH;
+    // NV21 copies: one per admitted frame plus a spare, so a copy always finds a free slot
+    private static final int RING_SLOTS = PIPELINE_DEPTH + 1;
+    // frames older than this are dropped between stages
+    private static final long FRAME_BUDGET_MS = Examples.FRAME_BUDGET_MS;
+    // pooled buffers kept per shape: input tensors, and overlays (shown, being drawn, spare)
+    private static final int TENSOR_POOL_SIZE = Examples.TENSOR_POOL_SIZE;
+    private static final int BITMAP_POOL_SIZE = 3;
+    // release builds only trace one frame in this many
+    private static final int TRACE_SAMPLING = 16;
+    // per stage allocated bytes and GC counts in the timing table (slows allocation down)
+    private static final boolean ALLOC_TRACKING = false;
+    // binary timing log for soak tests (see TraceLog, TraceExport)
+    private static final boolean TRACE_LOG = false;
+    private static final int TRACE_LOG_RECORDS = 1 << 18;
+    // camera sampling follows the pipeline bottleneck within these bounds
+    private static final float MIN_FPS = 1.0f;
+    private static final float MAX_FPS = 30.0f;
+    private static final long SAMPLING_HYSTERESIS_MS = 15;
+    // frames differing from the last inferred one by less than this (mean luma) reuse its labels
+    private static final float SCENE_THRESHOLD = 6.0f;
+    private static final long SCENE_MAX_AGE_MS = 3000;
+    // redraw labels only when a confidence moves by more than this, or after the staleness limit
+    private static final float RESULT_TOLERANCE = 0.05f;
+    private static final long RESULT_MAX_STALE_MS = 1000;
+    // frame counters are sampled this often, rates shown in the table
+    private static final long METRICS_PERIOD_MS = 2000;
+    // append metric snapshots to metrics.jsonl in the external files dir
+    private static final boolean METRICS_DUMP = false;
+    // latency percentiles are shown for the last complete window of this length
+    private static final long STATS_WINDOW_MS = 10000;
+    // pooled buffers out for longer than this when pausing are reported as leaked
+    private static final long LEAK_AGE_MS = 5000;
 
     TextView statusText;
     TableLayout tableLayout;
@@ -42,12 +82,29 @@ public class MainActivity extends AppCompatActivity {
     ImageView dbgView;
 
     Dnn.Manager dnnManager;
+    TensorPool tensorPool = new TensorPool(TENSOR_POOL_SIZE);
+    BitmapPool bitmapPool = new BitmapPool(BITMAP_POOL_SIZE);
+    Bitmap shownOverlay = null;
+    FrameRing frameRing;
+    Admission admission;
+    Deadline deadline;
+    TraceLog traceLog;
+    FrameSampler sampler;
+    SceneCache<List<Classifier.ClassLabel>> sceneCache;
+    ResultDiff resultDiff;
+    Metrics metrics;
+    Metrics.Counter inferred;
+    Metrics.Counter displayed;
+    volatile List<Pair<String, Float>> rates = new ArrayList<>();
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
+        Tags.setTracing(BuildConfig.DEBUG ? Tags.Level.FULL : Tags.Level.SAMPLED, TRACE_SAMPLING);
+        Tags.setAllocTracking(ALLOC_TRACKING);
+
         statusText = (TextView) findViewById(R.id.statusText);
         tableLayout = (TableLayout) findViewById(R.id.tableLayout);
         cameraView = (CameraView) findViewById(R.id.cameraView);
@@ -67,7 +124,36 @@ public class MainActivity extends AppCompatActivity {
     protected void onResume() {
         super.onResume();
 
-        Observable<Bitmap> camFrames = Camera.getFeed(this,cameraView,camPerm);
+        // fresh per subscription: frames in flight at disposal never hand back their slot/permit
+        frameRing = new FrameRing(RING_SLOTS);
+        admission = new Admission(PIPELINE_DEPTH);
+        deadline = new Deadline(FRAME_BUDGET_MS);
+        sampler = new FrameSampler(MIN_FPS, MAX_FPS, SAMPLING_HYSTERESIS_MS, PIPELINE_DEPTH);
+        // frames dropped as late are the ones the pacing most needs to see
+        deadline.onLate(sampler::observe);
+        sceneCache = new SceneCache<>(SCENE_THRESHOLD, SCENE_MAX_AGE_MS);
+        resultDiff = new ResultDiff(RESULT_TOLERANCE, RESULT_MAX_STALE_MS);
+        Observable<Frame> camFrames = Camera.getFrames(this,cameraView,camPerm,sampler.gate());
+
+        // where frames go: captured -> admitted -> inferred -> displayed, or dropped on the way
+        metrics = new Metrics();
+        inferred = metrics.counter("frames.inferred");
+        displayed = metrics.counter("frames.displayed");
+        metrics.gauge("frames.sampled", sampler::passed);
+        metrics.gauge("frames.captured", () -> sampler.passed() + sampler.skipped());
+        metrics.gauge("dropped.sampling", sampler::skipped);
+        metrics.gauge("sampling.interval_ms", sampler::intervalMs);
+        metrics.gauge("frames.cached", sceneCache::hits);
+        metrics.gauge("frames.admitted", admission::admitted);
+        metrics.gauge("frames.copied", frameRing::offered);
+        metrics.gauge("dropped.ring_full", frameRing::drops);
+        metrics.gauge("dropped.admission", admission::dropped);
+        metrics.gauge("dropped.late", deadline::dropped);
+        metrics.gauge("frames.unchanged", resultDiff::suppressed);
+        metrics.gauge("frames.in_flight", admission::inFlight);
+        metrics.gauge("ring.occupancy", frameRing::occupancy);
+        metrics.gauge("pool.tensors.outstanding", tensorPool::outstanding);
+        metrics.gauge("pool.bitmaps.outstanding", bitmapPool::outstanding);
 
         // set up numericcal DNN manager
         dnnManager = Dnn.createManager(getApplicationContext());
@@ -85,20 +171,63 @@ public class MainActivity extends AppCompatActivity {
 
         // prepare classifier
         Single<Observable<Tags.TTok<List<Classifier.ClassLabel>>>> objectLabels =
-                Examples.MobileNetClassifier.classifyObjects(objectDetector, camFrames);
+                Examples.MobileNetClassifier.classifyFrames(objectDetector, camFrames, tensorPool, frameRing, admission, deadline, sceneCache);
+
+        if (TRACE_LOG) {
+            try {
+                traceLog = new TraceLog(new File(getExternalFilesDir(null), "timing.trc"), TRACE_LOG_RECORDS);
+            } catch (IOException ioex) {
+                Log.e(TAG, "no trace log: " + ioex);
+            }
+        }
+        final TraceLog trace = traceLog;
 
         Observable<Tags.TTok<Bitmap>> labelOverlay = objectLabels
                 .flatMapObservable(labels -> {
-                    return labels.compose(
-                            Examples.MobileNetClassifier.drawLabels(
-                                    extraOverlay.getWidth(), extraOverlay.getHeight()));
+                    Observable<Tags.TTok<List<Classifier.ClassLabel>>> checked = labels
+                            .doOnNext(ttok -> { if (!ttok.md.cached()) inferred.inc(); })
+                            // labels that missed the budget are no longer current
+                            .filter(deadline.check("labeling"))
+                            // pace the camera to the pipeline
+                            .map(sampler.observeTT());
+                    if (trace != null) {
+                        // every frame, including the ones with unchanged labels
+                        checked = checked.map(trace.logTT());
+                    }
+                    return checked
+                            // draw and display only when the labels change
+                            .filter(resultDiff.changedTT())
+                            .compose(Examples.MobileNetClassifier.drawLabels(
+                                    extraOverlay.getWidth(), extraOverlay.getHeight(), bitmapPool));
                 });
 
         // finally display labels and timing info
-        labelOverlay.compose(Utils.mkOT(Utils.lpfTT(0.95f))) // low-pass network response
+        labelOverlay
+                .compose(Utils.mkOT(Utils.lpfTT(0.95f))) // low-pass network response
                 .observeOn(AndroidSchedulers.mainThread())
                 .as(AutoDispose.autoDisposable(AndroidLifecycleScopeProvider.from(this)))
                 .subscribe(this::updateUI, Throwable::printStackTrace );
+
+        File metricsFile = new File(getExternalFilesDir(null), "metrics.jsonl");
+        metrics.snapshots(METRICS_PERIOD_MS)
+                .observeOn(Schedulers.io())
+                .scan(new Pair<Metrics.Snapshot, Metrics.Snapshot>(null, null),
+                        (prev, snap) -> new Pair<>(prev.second, snap))
+                .filter(pair -> pair.first != null)
+                .as(AutoDispose.autoDisposable(AndroidLifecycleScopeProvider.from(this)))
+                .subscribe(pair -> {
+                    Metrics.Snapshot prev = pair.first;
+                    Metrics.Snapshot snap = pair.second;
+                    List<Pair<String, Float>> fps = new ArrayList<>();
+                    fps.add(new Pair<>("fps sampling", sampler.fps()));
+                    fps.add(new Pair<>("fps captured", snap.rate("frames.captured", prev)));
+                    fps.add(new Pair<>("fps admitted", snap.rate("frames.admitted", prev)));
+                    fps.add(new Pair<>("fps inferred", snap.rate("frames.inferred", prev)));
+                    fps.add(new Pair<>("fps displayed", snap.rate("frames.displayed", prev)));
+                    fps.add(new Pair<>("cache hit %", 100.0f * sceneCache.hitRate()));
+                    rates = fps;
+                    if (METRICS_DUMP) Metrics.dump(metricsFile, snap);
+                }, Throwable::printStackTrace);
     }
 
 
@@ -106,10 +235,17 @@ public class MainActivity extends AppCompatActivity {
     private <T> void updateUI(Pair<Bitmap,List<Pair<String, Float>>> report) {
         extraOverlay.setImageResource(android.R.color.transparent);
         extraOverlay.setImageBitmap(report.first);
+        // the view no longer references the previous overlay
+        if (shownOverlay != null) bitmapPool.release(shownOverlay);
+        shownOverlay = report.first;
+        displayed.inc();
         int cnt = 0;
         tableLayout.removeAllViews();
 
-        List<Pair<String,Float>> tbl = report.second;
+        List<Pair<String,Float>> tbl = new ArrayList<>(rates);
+        tbl.addAll(report.second);
+        tbl.addAll(StageStats.report(STATS_WINDOW_MS));
+        tbl.addAll(deadline.report());
 
         for (Pair<String, Float> p: tbl) {
             TableRow row = new TableRow(this);
@@ -124,7 +260,7 @@ public class MainActivity extends AppCompatActivity {
             key.setLayoutParams(keyLPs);
 
             TextView val = new TextView(this);
-            val.setText(Long.valueOf(Math.round(p.second)).toString());
+            val.setText(String.format("%.1f", p.second));
             val.setTextAlignment(View.TEXT_ALIGNMENT_VIEW_END);
             TableRow.LayoutParams valLPs = new TableRow.LayoutParams();
             valLPs.weight = 1.0f;
@@ -144,6 +280,31 @@ public class MainActivity extends AppCompatActivity {
         // for the demo, release all DNNs when not on top
         if (!isChangingConfigurations() && dnnManager != null) {
             Log.i(TAG, "seems to be going in background ...");
+            Log.i(TAG, "tensor pool " + tensorPool);
+            Log.i(TAG, "bitmap pool " + bitmapPool);
+            // suspected leaks are reported, then forgotten so the pools do not keep them
+            Log.i(TAG, "pool leaks: tensors " + tensorPool.leaks(LEAK_AGE_MS)
+                    + " bitmaps " + bitmapPool.leaks(LEAK_AGE_MS));
+            tensorPool.reclaim(LEAK_AGE_MS);
+            bitmapPool.reclaim(LEAK_AGE_MS);
+            Log.i(TAG, "frame ring " + frameRing);
+            Log.i(TAG, "admission " + admission);
+            Log.i(TAG, "sampler " + sampler);
+            Log.i(TAG, "scene cache " + sceneCache);
+            Log.i(TAG, "result diff " + resultDiff);
+            Log.i(TAG, "metrics " + metrics.snapshot());
+            if (traceLog != null) {
+                Log.i(TAG, "trace log " + traceLog);
+                try {
+                    traceLog.close();
+                } catch (IOException ioex) {
+                    Log.e(TAG, "trace log: " + ioex);
+                }
+                traceLog = null;
+            }
+            for (Map.Entry<String, LatencyHistogram> e: StageStats.snapshot(true).entrySet()) {
+                Log.i(TAG, e.getKey() + " " + e.getValue());
+            }
             dnnManager.release();
             dnnManager = null;
         }
@@ -0,0 +1,166 @@
+package com.numericcal.classifierdemo;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import io.reactivex.Observable;
+
+/**
+ * In-process pipeline metrics: monotonic counters (frames captured, admitted, dropped by
+ * reason, inferred, displayed) and gauges (frames in flight, ring and pool occupancy).
+ * Snapshots are taken on demand or periodically, turned into rates against the previous
+ * snapshot, and can be appended to a file as JSON lines.
+ *
+ * Counters are striped over padded cells of an AtomicLongArray, so writers on different
+ * threads rarely contend (LongAdder needs API 24).
+ */
+public class Metrics {
+    private static final String TAG = "AS.Metrics";
+
+    /**
+     * Monotonic counter, cheap to bump from any thread.
+     */
+    public static class Counter {
+        private static final int STRIPES = stripes();
+        private static final int PAD = 8; // one cell per 64 byte cache line
+
+        private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PAD);
+
+        private static int stripes() {
+            int n = 1;
+            while (n < Runtime.getRuntime().availableProcessors()) n <<= 1;
+            return n;
+        }
+
+        public void inc() {
+            add(1L);
+        }
+
+        public void add(long n) {
+            int cell = (int) (Thread.currentThread().getId() & (STRIPES - 1)) * PAD;
+            cells.getAndAdd(cell, n);
+        }
+
+        public long get() {
+            long sum = 0;
+            for (int i = 0; i < STRIPES; i++) {
+                sum += cells.get(i * PAD);
+            }
+            return sum;
+        }
+    }
+
+    /**
+     * A value read at snapshot time (e.g. pool occupancy, or a component's own counter).
+     */
+    public interface Gauge {
+        long value();
+    }
+
+    /**
+     * Values of all counters and gauges at one point in time.
+     */
+    public static class Snapshot {
+        public final long timeNs;
+        public final Map<String, Long> values;
+
+        Snapshot(long timeNs, Map<String, Long> values) {
+            this.timeNs = timeNs;
+            this.values = Collections.unmodifiableMap(values);
+        }
+
+        public long get(String name) {
+            Long val = values.get(name);
+            return val != null ? val : 0L;
+        }
+
+        /**
+         * @param name - counter name
+         * @param prev - an earlier snapshot
+         * @return events per second between prev and this snapshot
+         */
+        public float rate(String name, Snapshot prev) {
+            long dt = timeNs - prev.timeNs;
+            if (dt <= 0) return 0.0f;
+            return (get(name) - prev.get(name)) * 1e9f / dt;
+        }
+
+        public String toJson() {
+            StringBuilder str = new StringBuilder();
+            str.append("{\"t_ms\":").append(TimeUnit.NANOSECONDS.toMillis(timeNs));
+            for (Map.Entry<String, Long> e: values.entrySet()) {
+                str.append(",\"").append(e.getKey()).append("\":").append(e.getValue());
+            }
+            str.append("}");
+            return str.toString();
+        }
+
+        @Override
+        public String toString() {
+            return toJson();
+        }
+    }
+
+    private final Map<String, Counter> counters = new LinkedHashMap<>();
+    private final Map<String, Gauge> gauges = new LinkedHashMap<>();
+
+    /**
+     * @param name - counter name, e.g. "frames.captured"
+     * @return the counter registered under name, created on first use
+     */
+    public synchronized Counter counter(String name) {
+        Counter cnt = counters.get(name);
+        if (cnt == null) {
+            cnt = new Counter();
+            counters.put(name, cnt);
+        }
+        return cnt;
+    }
+
+    /**
+     * Register (or replace) a gauge.
+     * @param name - gauge name, e.g. "pool.tensors.outstanding"
+     * @param gauge - value source, called from the snapshot thread
+     */
+    public synchronized void gauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    public synchronized Snapshot snapshot() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (Map.Entry<String, Counter> e: counters.entrySet()) {
+            values.put(e.getKey(), e.getValue().get());
+        }
+        for (Map.Entry<String, Gauge> e: gauges.entrySet()) {
+            values.put(e.getKey(), e.getValue().value());
+        }
+        return new Snapshot(System.nanoTime(), values);
+    }
+
+    /**
+     * @param periodMs - snapshot period
+     * @return a snapshot every period, on the computation scheduler
+     */
+    public Observable<Snapshot> snapshots(long periodMs) {
+        return Observable.interval(periodMs, TimeUnit.MILLISECONDS)
+                .map(__ -> snapshot());
+    }
+
+    /**
+     * Append a snapshot to a file as one JSON line.
+     */
+    public static void dump(File file, Snapshot snap) throws IOException {
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8")) {
+            w.write(snap.toJson());
+            w.write("\n");
+        }
+    }
+}
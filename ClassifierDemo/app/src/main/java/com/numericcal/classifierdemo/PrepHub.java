@@ -0,0 +1,247 @@
+package com.numericcal.classifierdemo;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.reactivex.Observable;
+import io.reactivex.functions.Consumer;
+import io.reactivex.functions.Function;
+import io.reactivex.schedulers.Schedulers;
+
+/**
+ * Shares one (decoded and rotated) camera feed between several models. Every frame goes out
+ * once to all consumers; each consumer forks its own token (timing, deadline, admission), and
+ * the scaled bitmaps and input tensors are derived lazily on the consumers' threads. Consumers
+ * asking for the same input size share the scaled bitmap, consumers with the same Spec share
+ * the tensor, so the per-frame cost grows with the number of distinct specs, not models.
+ *
+ * Derived buffers belong to the frame and go back to their pools once the last consumer has
+ * released its token, so consumers must not modify their input tensors. Source bitmaps are
+ * released to the hub's bitmap pool, use the pool the feed leases from (Camera.getFeed).
+ */
+public class PrepHub {
+    private static final String TAG = "AS.PrepHub";
+
+    /**
+     * Model input description. Specs with the same name and size share tensors, so the name
+     * has to identify the element type, layout and normalization.
+     */
+    public static class Spec<T> {
+        final String name;
+        final int width;
+        final int height;
+        final Function<Bitmap, T> prep;
+        final Consumer<T> releaser;
+        Scale scale; // set when the hub adopts the spec
+
+        /**
+         * @param name - element type, layout and normalization, e.g. "float32 HWC RGB 128/128"
+         * @param width - input width
+         * @param height - input height
+         * @param prep - scaled bitmap to tensor
+         * @param releaser - hands a tensor back (e.g. to its pool)
+         */
+        public Spec(String name, int width, int height, Function<Bitmap, T> prep, Consumer<T> releaser) {
+            this.name = name;
+            this.width = width;
+            this.height = height;
+            this.prep = prep;
+            this.releaser = releaser;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Spec)) return false;
+            Spec<?> other = (Spec<?>) o;
+            return name.equals(other.name) && width == other.width && height == other.height;
+        }
+
+        @Override
+        public int hashCode() {
+            return (name.hashCode() * 31 + width) * 31 + height;
+        }
+
+        @Override
+        public String toString() {
+            return name + " " + width + "x" + height;
+        }
+    }
+
+    // one scaler per distinct input size
+    static class Scale {
+        final Function<Bitmap, Bitmap> fn;
+
+        Scale(int width, int height, BitmapPool pool) {
+            this.fn = Camera.scaleTo(width, height, pool);
+        }
+    }
+
+    // a value derived from the frame, computed by whichever consumer gets there first
+    static class Slot {
+        Object value;
+        Consumer<Object> releaser;
+    }
+
+    /**
+     * A frame and everything derived from it so far.
+     */
+    static class Shared {
+        final PrepHub hub;
+        final Bitmap image;
+        private int refs = 1; // the hub's own, dropped once every consumer has its fork
+        private final Map<Object, Slot> slots = new HashMap<>();
+
+        Shared(PrepHub hub, Bitmap image) {
+            this.hub = hub;
+            this.image = image;
+        }
+
+        synchronized void acquire() {
+            refs += 1;
+        }
+
+        void unref() throws Exception {
+            synchronized (this) {
+                refs -= 1;
+                if (refs > 0) return;
+            }
+            for (Slot slot: slots.values()) {
+                if (slot.value != null) slot.releaser.accept(slot.value);
+            }
+            slots.clear();
+            hub.bmpPool.release(image);
+        }
+
+        private synchronized Slot slot(Object key) {
+            Slot slot = slots.get(key);
+            if (slot == null) {
+                slot = new Slot();
+                slots.put(key, slot);
+            }
+            return slot;
+        }
+
+        /**
+         * @param key - canonical key, also guards fn (stage functions are not reentrant)
+         */
+        @SuppressWarnings("unchecked")
+        private <I, V> V derive(Object key, I input, Function<I, V> fn, Consumer<V> releaser) throws Exception {
+            Slot slot = slot(key);
+            synchronized (slot) {
+                if (slot.value == null) {
+                    synchronized (key) {
+                        slot.value = fn.apply(input);
+                    }
+                    slot.releaser = (Consumer<Object>) releaser;
+                    hub.derivations.incrementAndGet();
+                }
+                return (V) slot.value;
+            }
+        }
+
+        Bitmap scaled(Spec<?> spec) throws Exception {
+            return derive(spec.scale, image, spec.scale.fn, hub.bmpPool::release);
+        }
+
+        <T> T tensor(Spec<T> spec) throws Exception {
+            return derive(spec, scaled(spec), spec.prep, spec.releaser);
+        }
+    }
+
+    final BitmapPool bmpPool;
+    private final Observable<Tags.TTok<Shared>> frames;
+    private final Map<Spec<?>, Spec<?>> specs = new HashMap<>();
+    private final Map<Long, Scale> scales = new HashMap<>();
+
+    private final AtomicLong frameCount = new AtomicLong(0);
+    final AtomicLong derivations = new AtomicLong(0);
+
+    /**
+     * @param source - camera feed, subscribed to once while any consumer is subscribed
+     * @param bmpPool - pool the source bitmaps come from, scaled bitmaps are leased here too
+     */
+    public PrepHub(Observable<Bitmap> source, BitmapPool bmpPool) {
+        this.bmpPool = bmpPool;
+        this.frames = source
+                .map(bmp -> new Shared(this, bmp))
+                // add thread/entry/exit time tagging, forked per consumer
+                .map(Tags.srcTag("source"))
+                .doOnNext(__ -> frameCount.incrementAndGet())
+                // every consumer holds its own reference by now
+                .doAfterNext(root -> {
+                    root.token.unref();
+                    root.md.recycle();
+                })
+                .share();
+    }
+
+    // equal specs (from different models) share one instance, its prep function and its key
+    @SuppressWarnings("unchecked")
+    private synchronized <T> Spec<T> adopt(Spec<T> spec) {
+        Spec<T> canon = (Spec<T>) specs.get(spec);
+        if (canon != null) return canon;
+
+        long size = ((long) spec.width << 32) | spec.height;
+        Scale scale = scales.get(size);
+        if (scale == null) {
+            scale = new Scale(spec.width, spec.height, bmpPool);
+            scales.put(size, scale);
+        }
+        spec.scale = scale;
+        specs.put(spec, spec);
+        return spec;
+    }
+
+    private Tags.TTok<Shared> fork(Tags.TTok<Shared> root) {
+        Shared sh = root.token;
+        sh.acquire();
+        Tags.MetaData md = root.md.fork();
+        md.releases.add(sh::unref);
+        return new Tags.TTok<>(md, sh);
+    }
+
+    /**
+     * Input tensors for one model. Run Tags.release() once the tensor is no longer needed.
+     * @param spec - the model's input
+     * @param admission - the model's own admission, frames it rejects never get scaled
+     * @param deadline - the model's own budget
+     * @return a stream of tensors, on the computation scheduler
+     */
+    public <T> Observable<Tags.TTok<T>> feed(Spec<T> spec, Admission admission, Deadline deadline) {
+        Spec<T> canon = adopt(spec);
+        return frames
+                .map(this::fork)
+                .map(deadline.stamp())
+                .filter(admission.admitTT())
+                .observeOn(Schedulers.computation())
+                // resize (once per input size)
+                .filter(deadline.check("scaling"))
+                .map(Tags.map(sh -> { sh.scaled(canon); return sh; }, "scaling"))
+                .observeOn(Schedulers.computation())
+                // normalize and lay out in memory (once per spec)
+                .filter(deadline.check("tensorPrep"))
+                .map(Tags.map(sh -> sh.tensor(canon), "tensorPrep"));
+    }
+
+    public long frames() { return frameCount.get(); }
+    public long derivations() { return derivations.get(); }
+
+    /**
+     * @return distinct input specs served
+     */
+    public synchronized List<Spec<?>> specs() {
+        return new ArrayList<>(specs.keySet());
+    }
+
+    @Override
+    public synchronized String toString() {
+        long n = frameCount.get();
+        return String.format("frames: %d derivations: %d (%.2f per frame) specs: %s",
+                n, derivations.get(), n > 0 ? (float) derivations.get() / n : 0.0f, specs.keySet());
+    }
+}
@@ -0,0 +1,95 @@
+package com.numericcal.classifierdemo;
+
+import java.util.List;
+
+import io.reactivex.functions.Predicate;
+
+/**
+ * Lets label lists through only when they differ from the last one let through, so the
+ * overlay is redrawn and the UI rebuilt per change instead of per frame. A list differs if a
+ * label is added, removed or moves to another rank, or if a confidence moves by more than
+ * the tolerance. The last result is passed again once it is maxStaleMs old, so the timing
+ * table keeps updating on a static scene.
+ *
+ * Keeps state across frames, so use one instance per stream.
+ */
+public class ResultDiff {
+    private static final String TAG = "AS.ResultDiff";
+
+    private final float tolerance;
+    private final long maxStaleNs;
+
+    // last result let through (copied, the lists belong to the chain)
+    private String[] classes = new String[0];
+    private float[] confidences = new float[0];
+    private long passedAt = 0;
+    private boolean seeded = false;
+
+    private long changes = 0;
+    private long suppressed = 0;
+
+    /**
+     * @param tolerance - confidence change that counts as a new result
+     * @param maxStaleMs - let a result through at least this often
+     */
+    public ResultDiff(float tolerance, long maxStaleMs) {
+        this.tolerance = tolerance;
+        this.maxStaleNs = maxStaleMs * 1000000L;
+    }
+
+    /**
+     * @return true if labels should be shown (and become the new reference)
+     */
+    public synchronized boolean changed(List<Classifier.ClassLabel> labels, long now) {
+        if (seeded && now - passedAt < maxStaleNs && same(labels)) {
+            suppressed += 1;
+            return false;
+        }
+        if (classes.length != labels.size()) {
+            classes = new String[labels.size()];
+            confidences = new float[labels.size()];
+        }
+        for (int k = 0; k < classes.length; k++) {
+            classes[k] = labels.get(k).objectClass;
+            confidences[k] = labels.get(k).confidence;
+        }
+        passedAt = now;
+        seeded = true;
+        changes += 1;
+        return true;
+    }
+
+    private boolean same(List<Classifier.ClassLabel> labels) {
+        if (labels.size() != classes.length) return false;
+        for (int k = 0; k < classes.length; k++) {
+            Classifier.ClassLabel lbl = labels.get(k);
+            if (!classes[k].equals(lbl.objectClass)
+                    || Math.abs(confidences[k] - lbl.confidence) > tolerance) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Drop tokens repeating the last result. Place after the resources are released; the
+     * metadata of dropped tokens is recycled.
+     */
+    public Predicate<Tags.TTok<List<Classifier.ClassLabel>>> changedTT() {
+        return ttok -> {
+            if (changed(ttok.token, System.nanoTime())) {
+                return true;
+            }
+            ttok.md.recycle();
+            return false;
+        };
+    }
+
+    public synchronized long changes() { return changes; }
+    public synchronized long suppressed() { return suppressed; }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("changes: %d suppressed: %d", changes, suppressed);
+    }
+}
@@ -0,0 +1,151 @@
+package com.numericcal.classifierdemo;
+
+import io.fotoapparat.preview.Frame;
+import io.reactivex.ObservableTransformer;
+import io.reactivex.functions.Function;
+
+/**
+ * Skips inference while the camera looks at the same scene. Each frame's NV21 luma plane is
+ * reduced to a small thumbnail (16x12 cells, 2x2 pixels sampled per cell) and compared to the
+ * thumbnail of the frame the cached result belongs to by mean absolute difference. Below the
+ * threshold the frame is answered from the cache (the token is marked cached) instead of going
+ * through the chain. Results older than maxAgeMs are refreshed regardless.
+ *
+ * Put checkTT() right after the source, route md.cached() tokens to replayTT() and
+ * the rest through inference and storeTT() (see Examples.classifyFrames).
+ *
+ * checkTT() runs on the camera side (one thread), storeTT() at the end of the chain.
+ */
+public class SceneCache<R> {
+    private static final String TAG = "AS.SceneCache";
+
+    static final int THUMB_W = 16;
+    static final int THUMB_H = 12;
+
+    private final float threshold;
+    private final long maxAgeNs;
+
+    private final int[] thumb = new int[THUMB_W * THUMB_H];
+    private final int[] reference = new int[THUMB_W * THUMB_H];
+    private boolean hasReference = false;
+    private long scene = 0; // bumped whenever the reference changes
+
+    private R result = null;
+    private long resultTime = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * @param threshold - mean absolute luma difference (0-255) that counts as a new scene
+     * @param maxAgeMs - never serve a result older than this
+     */
+    public SceneCache(float threshold, long maxAgeMs) {
+        this.threshold = threshold;
+        this.maxAgeNs = maxAgeMs * 1000000L;
+    }
+
+    /**
+     * Downsample the luma plane into thumb.
+     */
+    static void lumaThumb(byte[] nv21, int width, int height, int[] thumb) {
+        for (int ty = 0; ty < THUMB_H; ty++) {
+            int y = (2 * ty + 1) * height / (2 * THUMB_H);
+            int row0 = Math.min(y, height - 2) * width;
+            int row1 = row0 + width;
+            for (int tx = 0; tx < THUMB_W; tx++) {
+                int x = Math.min((2 * tx + 1) * width / (2 * THUMB_W), width - 2);
+                thumb[ty * THUMB_W + tx] = ((nv21[row0 + x] & 0xFF) + (nv21[row0 + x + 1] & 0xFF)
+                        + (nv21[row1 + x] & 0xFF) + (nv21[row1 + x + 1] & 0xFF) + 2) >> 2;
+            }
+        }
+    }
+
+    private static float meanAbsDiff(int[] a, int[] b) {
+        int sad = 0;
+        for (int i = 0; i < a.length; i++) {
+            sad += Math.abs(a[i] - b[i]);
+        }
+        return (float) sad / a.length;
+    }
+
+    /**
+     * Compare the frame to the cached scene and mark the token cached on a hit. Place before
+     * the first thread hop, while the camera buffer is valid.
+     */
+    public Function<Tags.TTok<Frame>, Tags.TTok<Frame>> checkTT() {
+        return ttok -> {
+            Frame f = ttok.token;
+            lumaThumb(f.getImage(), f.getSize().width, f.getSize().height, thumb);
+            check(ttok.md, System.nanoTime());
+            return ttok;
+        };
+    }
+
+    private synchronized void check(Tags.MetaData md, long now) {
+        boolean same = hasReference && meanAbsDiff(thumb, reference) < threshold;
+        boolean fresh = result != null && now - resultTime < maxAgeNs;
+
+        if (same && fresh) {
+            md.cached = true;
+            hits += 1;
+            return;
+        }
+        if (!same || result != null) {
+            // new scene, or a stale result: this frame becomes the reference
+            System.arraycopy(thumb, 0, reference, 0, thumb.length);
+            hasReference = true;
+            scene += 1;
+            result = null;
+        }
+        md.scene = scene;
+        misses += 1;
+    }
+
+    /**
+     * Answer cached tokens: the token gets the cached result (stage "cached") and its
+     * resources are released.
+     */
+    public ObservableTransformer<Tags.TTok<Frame>, Tags.TTok<R>> replayTT() {
+        return upstream -> upstream
+                .map(Tags.map(__ -> cachedResult(), "cached"))
+                .map(Tags.release());
+    }
+
+    private synchronized R cachedResult() {
+        return result;
+    }
+
+    /**
+     * Remember the result of a fresh inference, if its frame still is the reference scene.
+     */
+    public Function<Tags.TTok<R>, Tags.TTok<R>> storeTT() {
+        return ttok -> {
+            store(ttok.md.scene, ttok.token);
+            return ttok;
+        };
+    }
+
+    private synchronized void store(long frameScene, R res) {
+        if (frameScene == scene) {
+            result = res;
+            resultTime = System.nanoTime();
+        }
+    }
+
+    public synchronized long hits() { return hits; }
+    public synchronized long misses() { return misses; }
+
+    /**
+     * @return share of checked frames answered from the cache
+     */
+    public synchronized float hitRate() {
+        long total = hits + misses;
+        return total > 0 ? (float) hits / total : 0.0f;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("hits: %d misses: %d hit rate: %.2f", hits, misses, hitRate());
+    }
+}
@@ -0,0 +1,112 @@
+package com.numericcal.classifierdemo;
+
+import io.reactivex.functions.Function;
+
+/**
+ * Temporal smoothing of whole probability vectors between inference and label extraction, so
+ * top-N labels do not flicker from frame to frame (and the model can run less often).
+ *
+ * The smoothed vector is written back into the input array, which the chain owns at this
+ * point, so nothing is allocated per frame. Keeps state across frames, so use one instance
+ * per stream.
+ *
+ * EMA: s = d*s + (1-d)*x, unit DC gain, seeded with the first frame.
+ * WINDOW_MAX: per class maximum over the last `window` frames (a class seen once stays up
+ * for `window` frames).
+ */
+public class Smoother implements Function<float[], float[]> {
+    private static final String TAG = "AS.Smoother";
+
+    public enum Mode { EMA, WINDOW_MAX }
+
+    final Mode mode;
+    final int vectorSize;
+    final float discount;
+
+    private final float[] ema;
+    private final float[][] history;
+    private int pos = 0;
+    private int filled = 0;
+
+    private Smoother(Mode mode, int vectorSize, float discount, int window) {
+        this.mode = mode;
+        this.vectorSize = vectorSize;
+        this.discount = discount;
+        this.ema = (mode == Mode.EMA) ? new float[vectorSize] : null;
+        this.history = (mode == Mode.WINDOW_MAX) ? new float[window][vectorSize] : null;
+    }
+
+    /**
+     * @param vectorSize - number of classes
+     * @param discount - the pole of the IIR filter, 0 means no smoothing
+     */
+    public static Smoother ema(int vectorSize, float discount) {
+        return new Smoother(Mode.EMA, vectorSize, discount, 0);
+    }
+
+    /**
+     * @param vectorSize - number of classes
+     * @param window - number of frames to take the maximum over
+     */
+    public static Smoother windowMax(int vectorSize, int window) {
+        return new Smoother(Mode.WINDOW_MAX, vectorSize, 0.0f, Math.max(1, window));
+    }
+
+    /**
+     * Smooth in place.
+     * @param probs - current output vector, overwritten with the smoothed one
+     * @return probs
+     */
+    @Override
+    public float[] apply(float[] probs) {
+        if (mode == Mode.EMA) {
+            applyEma(probs);
+        } else {
+            applyWindowMax(probs);
+        }
+        return probs;
+    }
+
+    private void applyEma(float[] probs) {
+        final float[] s = ema;
+        final int len = vectorSize;
+
+        if (filled == 0) {
+            System.arraycopy(probs, 0, s, 0, len);
+            filled = 1;
+            return;
+        }
+
+        final float d = discount;
+        final float g = 1.0f - discount;
+        for (int i = 0; i < len; i++) {
+            float v = d * s[i] + g * probs[i];
+            s[i] = v;
+            probs[i] = v;
+        }
+    }
+
+    private void applyWindowMax(float[] probs) {
+        final int len = vectorSize;
+
+        System.arraycopy(probs, 0, history[pos], 0, len);
+        pos = (pos + 1) % history.length;
+        filled = Math.min(filled + 1, history.length);
+
+        // probs already holds the newest frame
+        for (int j = 0; j < filled; j++) {
+            float[] h = history[j];
+            for (int i = 0; i < len; i++) {
+                probs[i] = Math.max(probs[i], h[i]);
+            }
+        }
+    }
+
+    /**
+     * Forget the history (e.g. when the scene changes abruptly).
+     */
+    public void reset() {
+        pos = 0;
+        filled = 0;
+    }
+}
@@ -0,0 +1,233 @@
+package com.numericcal.classifierdemo;
+
+import android.util.Pair;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Latency histograms for every stage tagged with Tags.combine, per stage and per thread.
+ *
+ * Each thread records into its own histograms (single writer, no locks or atomics on the hot
+ * path). Readers merge them on demand. Statistics cover a window: newWindow() bumps the window
+ * number and every thread clears its own histograms the next time it records, so a reset
+ * never races with a writer.
+ */
+public class StageStats {
+    private static final String TAG = "AS.StageStats";
+
+    /**
+     * Histograms of one thread, indexed by interned stage id. Created on the thread itself.
+     */
+    static class Recorder {
+        final int thread;
+        final Thread owner;
+        volatile LatencyHistogram[] byStage = new LatencyHistogram[0];
+        // allocated bytes and measured calls, by stage
+        volatile long[] allocSum = new long[0];
+        volatile long[] allocCalls = new long[0];
+        volatile int window;
+
+        Recorder(int thread) {
+            this.thread = thread;
+            this.owner = Thread.currentThread();
+            this.window = StageStats.window;
+        }
+
+        void record(int stage, long ns) {
+            LatencyHistogram[] hists = byStage;
+            int cur = StageStats.window;
+            if (window != cur) {
+                for (LatencyHistogram h: hists) {
+                    if (h != null) h.reset();
+                }
+                Arrays.fill(allocSum, 0L);
+                Arrays.fill(allocCalls, 0L);
+                window = cur;
+            }
+            if (stage >= hists.length) {
+                hists = Arrays.copyOf(hists, Math.max(stage + 1, 2 * hists.length));
+                byStage = hists;
+            }
+            LatencyHistogram h = hists[stage];
+            if (h == null) {
+                h = new LatencyHistogram();
+                hists[stage] = h;
+            }
+            h.record(ns);
+        }
+
+        // called right after record() for the same stage, so the window is current
+        void recordAlloc(int stage, long bytes) {
+            long[] sum = allocSum;
+            long[] calls = allocCalls;
+            if (stage >= sum.length) {
+                int len = Math.max(stage + 1, 2 * sum.length);
+                sum = Arrays.copyOf(sum, len);
+                calls = Arrays.copyOf(calls, len);
+                allocSum = sum;
+                allocCalls = calls;
+            }
+            sum[stage] += bytes;
+            calls[stage] += 1;
+        }
+    }
+
+    private static final List<Recorder> recorders = new CopyOnWriteArrayList<>();
+    private static volatile int window = 0;
+    private static volatile long windowStart = System.nanoTime();
+    private static volatile Map<String, LatencyHistogram> completed = null;
+    private static volatile Map<String, Float> completedAllocs = null;
+    private static volatile long gcCount0 = AllocProbe.gcCount();
+    private static volatile long gcTime0 = AllocProbe.gcTimeMs();
+    private static volatile long completedGcCount = 0;
+    private static volatile long completedGcTime = 0;
+
+    static Recorder recorder(int thread) {
+        Recorder rec = new Recorder(thread);
+        recorders.add(rec);
+        return rec;
+    }
+
+    /**
+     * Start a new statistics window. Recorders of threads that have died since are dropped
+     * (their samples belong to the window that just ended), so scheduler threads that come
+     * and go do not pile up.
+     */
+    public static void newWindow() {
+        windowStart = System.nanoTime();
+        gcCount0 = AllocProbe.gcCount();
+        gcTime0 = AllocProbe.gcTimeMs();
+        window += 1;
+
+        for (Recorder rec: recorders) {
+            if (!rec.owner.isAlive()) {
+                recorders.remove(rec);
+            }
+        }
+    }
+
+    /**
+     * @return threads recording (or that recorded in the current window)
+     */
+    static int recorderCount() {
+        return recorders.size();
+    }
+
+    /**
+     * @return age of the current window in ms
+     */
+    public static long windowAgeMs() {
+        return (System.nanoTime() - windowStart) / 1000000L;
+    }
+
+    /**
+     * Merge the current window.
+     * @param perThread - one histogram per "stage thread" instead of per stage
+     * @return histograms in stage order (name -> histogram), safe to keep
+     */
+    public static Map<String, LatencyHistogram> snapshot(boolean perThread) {
+        int cur = window;
+        int stages = Tags.STAGES.size();
+        Map<String, LatencyHistogram> res = new LinkedHashMap<>();
+
+        for (int s = 0; s < stages; s++) {
+            for (Recorder rec: recorders) {
+                LatencyHistogram[] hists = rec.byStage;
+                if (rec.window != cur || s >= hists.length || hists[s] == null) continue;
+
+                String name = perThread
+                        ? Tags.stageName(s) + " " + Tags.threadName(rec.thread)
+                        : Tags.stageName(s);
+                LatencyHistogram acc = res.get(name);
+                if (acc == null) {
+                    acc = new LatencyHistogram();
+                    res.put(name, acc);
+                }
+                acc.add(hists[s]);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Average bytes allocated per stage call in the current window (stages measured with
+     * Tags.setAllocTracking on, and which did not change threads).
+     * @return stage -> bytes per call, in stage order
+     */
+    public static Map<String, Float> allocations() {
+        int cur = window;
+        int stages = Tags.STAGES.size();
+        Map<String, Float> res = new LinkedHashMap<>();
+
+        for (int s = 0; s < stages; s++) {
+            long sum = 0;
+            long calls = 0;
+            for (Recorder rec: recorders) {
+                long[] recSum = rec.allocSum;
+                long[] recCalls = rec.allocCalls;
+                if (rec.window != cur || s >= recSum.length || s >= recCalls.length) continue;
+                sum += recSum[s];
+                calls += recCalls[s];
+            }
+            if (calls > 0) {
+                res.put(Tags.stageName(s), (float) sum / calls);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * @return garbage collections in the current window
+     */
+    public static long gcCount() { return AllocProbe.gcCount() - gcCount0; }
+
+    /**
+     * @return GC time in the current window, ms
+     */
+    public static long gcTimeMs() { return AllocProbe.gcTimeMs() - gcTime0; }
+
+    /**
+     * Per stage count and p50/p90/p99/max (ms), formatted for the timing table. With
+     * allocation tracking on, also kB allocated per call and the window's GC count and time. Shows the last
+     * complete window (the current one until the first window completes), and starts a new
+     * window once the current one is older than windowMs.
+     * @param windowMs - window length
+     */
+    public static List<Pair<String, Float>> report(long windowMs) {
+        if (windowAgeMs() >= windowMs) {
+            completed = snapshot(false);
+            completedAllocs = allocations();
+            completedGcCount = gcCount();
+            completedGcTime = gcTimeMs();
+            newWindow();
+        }
+        boolean done = completed != null;
+        Map<String, LatencyHistogram> shown = done ? completed : snapshot(false);
+        Map<String, Float> allocs = done ? completedAllocs : allocations();
+
+        List<Pair<String, Float>> res = new ArrayList<>();
+        for (Map.Entry<String, LatencyHistogram> e: shown.entrySet()) {
+            LatencyHistogram h = e.getValue();
+            String stage = e.getKey();
+            res.add(new Pair<>(stage + " n", (float) h.count()));
+            res.add(new Pair<>(stage + " p50", h.percentile(0.5) * 1e-6f));
+            res.add(new Pair<>(stage + " p90", h.percentile(0.9) * 1e-6f));
+            res.add(new Pair<>(stage + " p99", h.percentile(0.99) * 1e-6f));
+            res.add(new Pair<>(stage + " max", h.max() * 1e-6f));
+            Float bytes = allocs.get(stage);
+            if (bytes != null) {
+                res.add(new Pair<>(stage + " kB", bytes / 1024f));
+            }
+        }
+        if (!allocs.isEmpty()) {
+            res.add(new Pair<>("gc count", (float) (done ? completedGcCount : gcCount())));
+            res.add(new Pair<>("gc ms", (float) (done ? completedGcTime : gcTimeMs())));
+        }
+        return res;
+    }
+}
@@ -0,0 +1,95 @@
+package com.numericcal.classifierdemo;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Row-striped parallel loops for pixel kernels. The image is split into horizontal stripes
+ * that run on a fork-join pool with one worker per core. Small images stay on the calling
+ * thread, where the fork/join overhead would cost more than it saves.
+ */
+public class Stripes {
+    private static final String TAG = "AS.Stripes";
+
+    private static final ForkJoinPool POOL =
+            new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    // default threshold: roughly a VGA frame
+    public static final int MIN_PIXELS = 640 * 480;
+
+    public static final Stripes SERIAL = new Stripes(1, Integer.MAX_VALUE);
+
+    /**
+     * Work on rows [rowStart, rowEnd).
+     */
+    public interface RowKernel {
+        void run(int rowStart, int rowEnd);
+    }
+
+    private final int stripes;
+    private final int minPixels;
+
+    /**
+     * @param stripes - number of stripes to split into (1 means serial)
+     * @param minPixels - images smaller than this are processed serially
+     */
+    public Stripes(int stripes, int minPixels) {
+        this.stripes = Math.max(1, stripes);
+        this.minPixels = minPixels;
+    }
+
+    /**
+     * One stripe per core, default size threshold.
+     */
+    public static Stripes perCore() {
+        return new Stripes(Runtime.getRuntime().availableProcessors(), MIN_PIXELS);
+    }
+
+    private static class Stripe extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final RowKernel kernel;
+        final int rowStart;
+        final int rowEnd;
+        final int rowsPerStripe;
+
+        Stripe(RowKernel kernel, int rowStart, int rowEnd, int rowsPerStripe) {
+            this.kernel = kernel;
+            this.rowStart = rowStart;
+            this.rowEnd = rowEnd;
+            this.rowsPerStripe = rowsPerStripe;
+        }
+
+        @Override
+        protected void compute() {
+            if (rowEnd - rowStart <= rowsPerStripe) {
+                kernel.run(rowStart, rowEnd);
+                return;
+            }
+            // split on a stripe boundary so alignment is preserved
+            int half = ((rowEnd - rowStart) / rowsPerStripe + 1) / 2;
+            int mid = rowStart + half * rowsPerStripe;
+            invokeAll(new Stripe(kernel, rowStart, mid, rowsPerStripe),
+                    new Stripe(kernel, mid, rowEnd, rowsPerStripe));
+        }
+    }
+
+    /**
+     * Run the kernel over all rows, in parallel if the image is large enough.
+     * @param rows - number of rows
+     * @param cols - number of columns (only used for the size threshold)
+     * @param align - stripe starts are multiples of this (e.g. 2 for NV21 chroma rows)
+     * @param kernel - the row kernel
+     */
+    public void run(int rows, int cols, int align, RowKernel kernel) {
+        if (stripes <= 1 || rows * cols < minPixels || rows < 2 * align) {
+            kernel.run(0, rows);
+            return;
+        }
+        int rowsPerStripe = (rows + stripes - 1) / stripes;
+        rowsPerStripe = ((rowsPerStripe + align - 1) / align) * align;
+        POOL.invoke(new Stripe(kernel, 0, rows, rowsPerStripe));
+    }
+
+    public int stripes() { return stripes; }
+}
@@ -3,31 +3,310 @@ package com.numericcal.classifierdemo;
 import android.util.Pair;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
+import io.reactivex.functions.Action;
+import io.reactivex.functions.Consumer;
 import io.reactivex.functions.Function;
 
 /**
  * Conveniences for adding (measurement) tags into Rx chain.
+ *
+ * Timing is kept in primitive span arrays on the token metadata: one span per stage with the
+ * interned stage and thread ids and System.nanoTime entry/exit stamps. Stage names are
+ * interned when the tagging function is built and thread names once per thread, so tagging a
+ * stage is two clock reads and a few array stores. Metadata objects are recycled once the
+ * token is dropped or fully consumed (see MetaData.recycle()). Every combine() also feeds the
+ * stage latency histograms (see StageStats). With tracing OFF or SAMPLED (see setTracing()),
+ * untraced frames skip all of that and only pay a flag check per stage.
  */
 public class Tags {
 
     private static final String TAG = "AS.Tags";
 
+    /**
+     * How many frames get stage timing. OFF and SAMPLED frames still carry metadata (releases,
+     * deadline, source time) but their stages skip clock reads and histograms.
+     */
+    public enum Level { OFF, SAMPLED, FULL }
+
+    private static volatile Level level = Level.FULL;
+    private static volatile int sampleEvery = 1;
+
+    /**
+     * Set the tracing level for tokens created from now on.
+     * @param lvl - OFF, SAMPLED or FULL
+     * @param every - with SAMPLED, trace frames whose id is a multiple of this
+     */
+    public static void setTracing(Level lvl, int every) {
+        sampleEvery = Math.max(1, every);
+        level = lvl;
+    }
+
+    public static Level tracing() { return level; }
+
+    private static volatile boolean allocTracking = false;
+
+    /**
+     * Also record allocated bytes per stage and GC activity per frame for traced frames
+     * (see AllocProbe). Costs a counter read per stage boundary, off by default.
+     */
+    public static void setAllocTracking(boolean on) {
+        if (on) AllocProbe.enable();
+        allocTracking = on && AllocProbe.available();
+    }
+
+    // frame ids are per source, so the same frames get traced on every run
+    static boolean traced(long frameId) {
+        Level lvl = level;
+        return lvl == Level.FULL || (lvl == Level.SAMPLED && frameId % sampleEvery == 0);
+    }
+
+    // initial number of spans per token, grows if a chain is longer
+    private static final int SPANS = 16;
+    // recycled metadata objects kept around
+    private static final int MD_POOL_SIZE = 16;
+
+    /**
+     * Interned names (stages, threads). Ids are dense, starting at 0.
+     */
+    static class Names {
+        private final Map<String, Integer> ids = new HashMap<>();
+        private volatile String[] names = new String[0];
+
+        synchronized int intern(String name) {
+            Integer id = ids.get(name);
+            if (id == null) {
+                id = names.length;
+                ids.put(name, id);
+                String[] grown = Arrays.copyOf(names, id + 1);
+                grown[id] = name;
+                names = grown;
+            }
+            return id;
+        }
+
+        String name(int id) { return names[id]; }
+
+        int size() { return names.length; }
+    }
+
+    static final Names STAGES = new Names();
+    static final Names THREADS = new Names();
+
+    /**
+     * Per thread tagging state: interned name and stage latency histograms.
+     */
+    static class ThreadCtx {
+        final int id;
+        final StageStats.Recorder stats;
+
+        ThreadCtx(int id) {
+            this.id = id;
+            this.stats = StageStats.recorder(id);
+        }
+    }
+
+    private static final ThreadLocal<ThreadCtx> THREAD_CTX = new ThreadLocal<ThreadCtx>() {
+        @Override
+        protected ThreadCtx initialValue() {
+            return new ThreadCtx(THREADS.intern(Thread.currentThread().getName()));
+        }
+    };
+
+    /**
+     * @return interned id of the calling thread
+     */
+    static int threadId() {
+        return THREAD_CTX.get().id;
+    }
+
+    /**
+     * @return interned id of a stage tag
+     */
+    public static int stageId(String tag) {
+        return STAGES.intern(tag);
+    }
+
+    public static String stageName(int id) {
+        return STAGES.name(id);
+    }
+
+    public static String threadName(int id) {
+        return THREADS.name(id);
+    }
+
+    private static final MetaData[] mdPool = new MetaData[MD_POOL_SIZE];
+    private static int mdPooled = 0;
+
     public static class MetaData {
-        List<String> tags;
-        List<String> threads;
-        List<Long> entryTimes;
-        List<Long> exitTimes;
-
-        MetaData(List<String> tags, List<String> threads,
-                 List<Long> entryTimes, List<Long> exitTimes) {
-            this.tags = tags;
-            this.threads = threads;
-            this.entryTimes = entryTimes;
-            this.exitTimes = exitTimes;
+        int[] stages = new int[SPANS];
+        int[] threads = new int[SPANS];
+        long[] entryTimes = new long[SPANS]; // System.nanoTime
+        long[] exitTimes = new long[SPANS];
+        long[] allocBytes = new long[SPANS]; // -1 when not measured
+        int size = 0; // completed spans
+        final List<Action> releases = new ArrayList<>(); // run once the token is done with (see release())
+        long deadline = Long.MAX_VALUE; // drop after this System.nanoTime (see Deadline)
+        long frameId = 0; // per source sequence number
+        boolean traced = true; // stages record timing (see Level)
+        boolean allocs = false; // stages record allocations (see setAllocTracking)
+        boolean cached = false; // answered from a SceneCache, not inferred
+        long scene = 0; // SceneCache scene the frame was checked against
+        private long allocMark;
+        private int allocThread;
+        private long gcCount0;
+        private long gcTime0;
+        private boolean recycled = false;
+
+        private MetaData() {}
+
+        static MetaData obtain() {
+            MetaData md = null;
+            synchronized (mdPool) {
+                if (mdPooled > 0) {
+                    mdPooled -= 1;
+                    md = mdPool[mdPooled];
+                    mdPool[mdPooled] = null;
+                }
+            }
+            if (md == null) {
+                md = new MetaData();
+            }
+            md.recycled = false;
+            return md;
+        }
+
+        /**
+         * Hand the metadata back for reuse. Only call once nothing reads the token any more
+         * (dropped, or at the very end of the chain). Pending releases are discarded, so run
+         * Tags.release() first. Repeated calls are ignored.
+         */
+        public void recycle() {
+            if (recycled) return;
+            recycled = true;
+            size = 0;
+            deadline = Long.MAX_VALUE;
+            allocs = false;
+            cached = false;
+            scene = 0;
+            releases.clear();
+            synchronized (mdPool) {
+                if (mdPooled < MD_POOL_SIZE) {
+                    mdPool[mdPooled] = this;
+                    mdPooled += 1;
+                }
+            }
+        }
+
+        /**
+         * Copy for one branch of a fan-out (see PrepHub): spans, deadline and trace state, but
+         * no releases, each branch schedules its own.
+         */
+        MetaData fork() {
+            MetaData md = obtain();
+            if (md.stages.length < size) {
+                md.stages = new int[stages.length];
+                md.threads = new int[stages.length];
+                md.entryTimes = new long[stages.length];
+                md.exitTimes = new long[stages.length];
+                md.allocBytes = new long[stages.length];
+            }
+            System.arraycopy(stages, 0, md.stages, 0, size);
+            System.arraycopy(threads, 0, md.threads, 0, size);
+            System.arraycopy(entryTimes, 0, md.entryTimes, 0, size);
+            System.arraycopy(exitTimes, 0, md.exitTimes, 0, size);
+            System.arraycopy(allocBytes, 0, md.allocBytes, 0, size);
+            md.size = size;
+            md.deadline = deadline;
+            md.frameId = frameId;
+            md.traced = traced;
+            md.allocs = allocs;
+            md.gcCount0 = gcCount0;
+            md.gcTime0 = gcTime0;
+            return md;
+        }
+
+        void enter(long now) {
+            if (size == entryTimes.length) {
+                int cap = 2 * size;
+                stages = Arrays.copyOf(stages, cap);
+                threads = Arrays.copyOf(threads, cap);
+                entryTimes = Arrays.copyOf(entryTimes, cap);
+                exitTimes = Arrays.copyOf(exitTimes, cap);
+                allocBytes = Arrays.copyOf(allocBytes, cap);
+            }
+            entryTimes[size] = now;
+        }
+
+        void exit(int stage, int thread, long now) {
+            stages[size] = stage;
+            threads[size] = thread;
+            exitTimes[size] = now;
+            allocBytes[size] = -1L;
+            size += 1;
         }
 
+        // stage entry of a traced token
+        void begin() {
+            enter(System.nanoTime());
+            if (allocs) {
+                allocThread = Tags.threadId();
+                allocMark = AllocProbe.threadAllocated();
+            }
+        }
+
+        // stage exit of a traced token, after begin()
+        void end(int stage) {
+            ThreadCtx ctx = THREAD_CTX.get();
+            long now = System.nanoTime();
+            ctx.stats.record(stage, now - entryTimes[size]);
+            long bytes = -1L;
+            if (allocs && ctx.id == allocThread) {
+                // thread counters only mean something if the stage stayed on one thread
+                bytes = AllocProbe.threadAllocated() - allocMark;
+                ctx.stats.recordAlloc(stage, bytes);
+            }
+            exit(stage, ctx.id, now);
+            allocBytes[size - 1] = bytes;
+        }
+
+        /**
+         * @return number of recorded stages (the source included)
+         */
+        public int size() { return size; }
+
+        public int stageId(int i) { return stages[i]; }
+        public int threadId(int i) { return threads[i]; }
+        public String tag(int i) { return STAGES.name(stages[i]); }
+        public String thread(int i) { return THREADS.name(threads[i]); }
+        public long entryNs(int i) { return entryTimes[i]; }
+        public long exitNs(int i) { return exitTimes[i]; }
+        public long frameId() { return frameId; }
+        public boolean traced() { return traced; }
+        public boolean cached() { return cached; }
+
+        /**
+         * @return bytes allocated during stage i, -1 if not measured
+         */
+        public long allocBytes(int i) { return allocBytes[i]; }
+
+        /**
+         * @return garbage collections since the source stage, 0 if not measured
+         */
+        public long gcCountSinceSource() {
+            return allocs ? AllocProbe.gcCount() - gcCount0 : 0L;
+        }
+
+        /**
+         * @return GC time (ms) since the source stage, 0 if not measured
+         */
+        public long gcTimeMsSinceSource() {
+            return allocs ? AllocProbe.gcTimeMs() - gcTime0 : 0L;
+        }
     }
 
     public static class TTok<T> {
@@ -42,39 +321,133 @@ public class Tags {
 
     public static <T> Function<TTok<T>, Pair<TTok<T>, T>> extract() {
         return input -> {
-            input.md.entryTimes.add(System.currentTimeMillis());
+            if (input.md.traced) {
+                input.md.begin();
+            }
             return new Pair<>(input, input.token);
         };
     }
 
     public static <T,F> Function<Pair<TTok<T>, F>, TTok<F>> combine(String tag) {
+        int stage = stageId(tag);
         return input -> {
 
             MetaData md = input.first.md;
             F res = input.second;
 
-            md.tags.add(tag);
-            md.threads.add(Thread.currentThread().getName());
-            md.exitTimes.add(System.currentTimeMillis());
+            if (md.traced) {
+                md.end(stage);
+            }
+
+            return new TTok<>(md, res);
+        };
+    }
+
+    /**
+     * extract, fn and combine(tag) in one step, without the intermediate Pair. Untraced
+     * tokens only run fn.
+     * @param fn - stage function
+     * @param tag - stage tag
+     */
+    public static <T,F> Function<TTok<T>, TTok<F>> map(Function<T,F> fn, String tag) {
+        int stage = stageId(tag);
+        return input -> {
+            MetaData md = input.md;
+            if (!md.traced) {
+                return new TTok<>(md, fn.apply(input.token));
+            }
+
+            md.begin();
+            F res = fn.apply(input.token);
+            md.end(stage);
 
             return new TTok<>(md, res);
         };
     }
 
+    /**
+     * Same as map(fn, tag), but also schedules the result to be handed back (e.g. to a pool)
+     * when the token is released.
+     * @param releaser - called with the stage result on release
+     */
+    public static <T,F> Function<TTok<T>, TTok<F>> map(Function<T,F> fn, String tag, Consumer<F> releaser) {
+        Function<TTok<T>, TTok<F>> plain = map(fn, tag);
+        return input -> {
+            TTok<F> out = plain.apply(input);
+            F res = out.token;
+            out.md.releases.add(() -> releaser.accept(res));
+            return out;
+        };
+    }
+
+    /**
+     * Same as combine(tag), but also schedules the result to be handed back (e.g. to a pool)
+     * when the token is released.
+     * @param tag - stage tag
+     * @param releaser - called with the stage result on release
+     */
+    public static <T,F> Function<Pair<TTok<T>, F>, TTok<F>> combine(String tag, Consumer<F> releaser) {
+        Function<Pair<TTok<T>, F>, TTok<F>> plain = combine(tag);
+        return input -> {
+            F res = input.second;
+            input.first.md.releases.add(() -> releaser.accept(res));
+            return plain.apply(input);
+        };
+    }
+
+    /**
+     * Run all pending release actions. Place at the point where the chain no longer needs
+     * any of the intermediate buffers.
+     */
+    public static <T> Function<TTok<T>, TTok<T>> release() {
+        return input -> {
+            List<Action> releases = input.md.releases;
+            for (int i = 0; i < releases.size(); i++) {
+                releases.get(i).run();
+            }
+            releases.clear();
+            return input;
+        };
+    }
+
+    /**
+     * Start a token. The source time is always recorded (deadlines are relative to it), the
+     * following stages only for traced frames.
+     * @param tag - source tag
+     */
     public static <T> Function<T, TTok<T>> srcTag(String tag) {
+        int stage = stageId(tag);
+        long[] seq = {0}; // a source emits from one thread at a time
         return src -> {
-            List<String> tags = new ArrayList<>();
-            List<String> threads = new ArrayList<>();
-            List<Long> entryTimes = new ArrayList<>();
-            List<Long> exitTimes = new ArrayList<>();
+            MetaData md = MetaData.obtain();
+            md.frameId = seq[0]++;
+            md.traced = traced(md.frameId);
+            md.allocs = md.traced && allocTracking;
+            if (md.allocs) {
+                md.gcCount0 = AllocProbe.gcCount();
+                md.gcTime0 = AllocProbe.gcTimeMs();
+            }
 
-            tags.add(tag);
-            threads.add(Thread.currentThread().getName());
+            long now = System.nanoTime();
+            md.enter(now);
+            md.exit(stage, threadId(), now);
 
-            entryTimes.add(System.currentTimeMillis());
-            exitTimes.add(System.currentTimeMillis());
+            return new TTok<>(md, src);
+        };
+    }
 
-            return new TTok<>(new MetaData(tags, threads, entryTimes, exitTimes), src);
+    /**
+     * Same as srcTag(tag), but also schedules the source item to be handed back (e.g. to a
+     * pool) when the token is released.
+     * @param tag - source tag
+     * @param releaser - called with the source item on release
+     */
+    public static <T> Function<T, TTok<T>> srcTag(String tag, Consumer<T> releaser) {
+        Function<T, TTok<T>> plain = srcTag(tag);
+        return src -> {
+            TTok<T> ttok = plain.apply(src);
+            ttok.md.releases.add(() -> releaser.accept(src));
+            return ttok;
         };
     }
 
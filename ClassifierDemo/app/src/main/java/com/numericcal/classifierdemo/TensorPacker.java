@@ -0,0 +1,117 @@
+package com.numericcal.classifierdemo;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Packs ARGB (or 0x00RRGGBB) pixels into a normalized float tensor. One packer covers HWC and
+ * CHW layouts, RGB and BGR channel order and per-channel mean/std. Normalization goes through
+ * 256-entry lookup tables, so the inner loops are a shift, a mask and a table load per channel,
+ * with no divides and no branches.
+ */
+public class TensorPacker {
+    private static final String TAG = "AS.TensorPacker";
+
+    public enum Layout { HWC, CHW }
+
+    final Layout layout;
+    final boolean bgr;
+
+    // per output channel: where to find it in the pixel and how to normalize it
+    private final int shift0, shift1, shift2;
+    private final float[] lut0, lut1, lut2;
+
+    /**
+     * @param layout - HWC (interleaved) or CHW (planar)
+     * @param bgr - emit channels in BGR order
+     * @param mean - per channel mean, RGB order
+     * @param std - per channel standard deviation, RGB order
+     */
+    public TensorPacker(Layout layout, boolean bgr, float[] mean, float[] std) {
+        this.layout = layout;
+        this.bgr = bgr;
+
+        float[] lutR = lut(mean[0], std[0]);
+        float[] lutG = lut(mean[1], std[1]);
+        float[] lutB = lut(mean[2], std[2]);
+
+        this.shift0 = bgr ? 0 : 16;
+        this.shift1 = 8;
+        this.shift2 = bgr ? 16 : 0;
+        this.lut0 = bgr ? lutB : lutR;
+        this.lut1 = lutG;
+        this.lut2 = bgr ? lutR : lutB;
+    }
+
+    /**
+     * Same mean/std for all channels.
+     */
+    public TensorPacker(Layout layout, boolean bgr, float mean, float std) {
+        this(layout, bgr, new float[]{mean, mean, mean}, new float[]{std, std, std});
+    }
+
+    private static float[] lut(float mean, float std) {
+        float[] res = new float[256];
+        for (int c = 0; c < 256; c++) {
+            res[c] = (c - mean) / std;
+        }
+        return res;
+    }
+
+    /**
+     * Pack pixels [start, end) of an image with `size` pixels.
+     * @param pix - pixels, one int per position
+     * @param start - first pixel (inclusive)
+     * @param end - last pixel (exclusive)
+     * @param size - total number of pixels (plane size for CHW)
+     * @param out - tensor, at least 3*size floats
+     */
+    public void pack(int[] pix, int start, int end, int size, float[] out) {
+        final float[] l0 = lut0, l1 = lut1, l2 = lut2;
+        final int s0 = shift0, s1 = shift1, s2 = shift2;
+
+        if (layout == Layout.HWC) {
+            for (int i = start, o = 3 * start; i < end; i++, o += 3) {
+                int val = pix[i];
+                out[o] = l0[(val >> s0) & 0xFF];
+                out[o + 1] = l1[(val >> s1) & 0xFF];
+                out[o + 2] = l2[(val >> s2) & 0xFF];
+            }
+        } else {
+            int p1 = size;
+            int p2 = 2 * size;
+            for (int i = start; i < end; i++) {
+                int val = pix[i];
+                out[i] = l0[(val >> s0) & 0xFF];
+                out[p1 + i] = l1[(val >> s1) & 0xFF];
+                out[p2 + i] = l2[(val >> s2) & 0xFF];
+            }
+        }
+    }
+
+    /**
+     * Same as above, into a (direct) FloatBuffer. Uses absolute puts, so disjoint ranges can
+     * be packed from different threads.
+     */
+    public void pack(int[] pix, int start, int end, int size, FloatBuffer out) {
+        final float[] l0 = lut0, l1 = lut1, l2 = lut2;
+        final int s0 = shift0, s1 = shift1, s2 = shift2;
+
+        if (layout == Layout.HWC) {
+            for (int i = start, o = 3 * start; i < end; i++, o += 3) {
+                int val = pix[i];
+                out.put(o, l0[(val >> s0) & 0xFF]);
+                out.put(o + 1, l1[(val >> s1) & 0xFF]);
+                out.put(o + 2, l2[(val >> s2) & 0xFF]);
+            }
+        } else {
+            int p1 = size;
+            int p2 = 2 * size;
+            for (int i = start; i < end; i++) {
+                int val = pix[i];
+                out.put(i, l0[(val >> s0) & 0xFF]);
+                out.put(p1 + i, l1[(val >> s1) & 0xFF]);
+                out.put(p2 + i, l2[(val >> s2) & 0xFF]);
+            }
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package com.numericcal.classifierdemo;
+
+import android.util.Log;
+
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Bounded pool of tensor buffers keyed by shape (element count). Converters lease a buffer per
+ * frame and the chain returns it once the TTok carrying it is done (see Tags.release).
+ */
+public class TensorPool {
+    private static final String TAG = "AS.TensorPool";
+
+    private final int maxPerShape;
+    private final Map<Long, ArrayDeque<Object>> free = new HashMap<>();
+    private final Map<Object, Long> leased = new IdentityHashMap<>();
+
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * @param maxPerShape - maximum number of idle buffers kept for each shape
+     */
+    public TensorPool(int maxPerShape) {
+        this.maxPerShape = maxPerShape;
+    }
+
+    private static final Class<?>[] KINDS = {
+            float.class, int.class, byte.class, FloatBuffer.class, ByteBuffer.class};
+
+    private static long key(Class<?> type, int len) {
+        int kind = 0;
+        while (KINDS[kind] != type) kind++;
+        return KINDS.length * (long) len + kind;
+    }
+
+    private static long keyOf(Object buf) {
+        if (buf instanceof FloatBuffer) return key(FloatBuffer.class, ((FloatBuffer) buf).capacity());
+        if (buf instanceof ByteBuffer) return key(ByteBuffer.class, ((ByteBuffer) buf).capacity());
+        return key(buf.getClass().getComponentType(), Array.getLength(buf));
+    }
+
+    private static Object allocate(Class<?> type, int len) {
+        if (type == FloatBuffer.class) {
+            return ByteBuffer.allocateDirect(4 * len).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        }
+        if (type == ByteBuffer.class) {
+            return ByteBuffer.allocateDirect(len).order(ByteOrder.nativeOrder());
+        }
+        return Array.newInstance(type, len);
+    }
+
+    private synchronized Object lease(Class<?> type, int len) {
+        ArrayDeque<Object> idle = free.get(key(type, len));
+        Object buf = (idle == null) ? null : idle.poll();
+        if (buf == null) {
+            misses += 1;
+            buf = allocate(type, len);
+        } else {
+            hits += 1;
+        }
+        leased.put(buf, System.currentTimeMillis());
+        return buf;
+    }
+
+    public float[] leaseFloats(int len) {
+        return (float[]) lease(float.class, len);
+    }
+
+    public int[] leaseInts(int len) {
+        return (int[]) lease(int.class, len);
+    }
+
+    public byte[] leaseBytes(int len) {
+        return (byte[]) lease(byte.class, len);
+    }
+
+    /**
+     * Native-ordered direct float tensor, off the Java heap. Engines can read it in place
+     * instead of copying a heap array across JNI.
+     * @param len - number of floats
+     */
+    public FloatBuffer leaseDirectFloats(int len) {
+        FloatBuffer buf = (FloatBuffer) lease(FloatBuffer.class, len);
+        buf.clear();
+        return buf;
+    }
+
+    /**
+     * Native-ordered direct byte tensor (uint8 models).
+     * @param len - number of bytes
+     */
+    public ByteBuffer leaseDirectBytes(int len) {
+        ByteBuffer buf = (ByteBuffer) lease(ByteBuffer.class, len);
+        buf.clear();
+        return buf;
+    }
+
+    /**
+     * Return a buffer. Buffers that did not come from this pool are ignored.
+     * @param buf - array or direct buffer obtained from lease*
+     */
+    public synchronized void release(Object buf) {
+        if (leased.remove(buf) == null) {
+            return;
+        }
+
+        long k = keyOf(buf);
+        ArrayDeque<Object> idle = free.get(k);
+        if (idle == null) {
+            idle = new ArrayDeque<>();
+            free.put(k, idle);
+        }
+        if (idle.size() < maxPerShape) {
+            idle.push(buf);
+        }
+    }
+
+    /**
+     * Count buffers that have been out for longer than expected. These are most likely
+     * leaked (dropped from the chain without release) and will just be GC-ed.
+     * @param maxAgeMs - lease age considered a leak
+     * @return number of suspected leaks
+     */
+    public synchronized int leaks(long maxAgeMs) {
+        long now = System.currentTimeMillis();
+        int cnt = 0;
+        for (Long t: leased.values()) {
+            if (now - t > maxAgeMs) cnt += 1;
+        }
+        return cnt;
+    }
+
+    /**
+     * Forget leases older than maxAgeMs so the bookkeeping does not grow without bound.
+     * @param maxAgeMs - lease age considered a leak
+     * @return number of leases dropped
+     */
+    public synchronized int reclaim(long maxAgeMs) {
+        long now = System.currentTimeMillis();
+        int before = leased.size();
+        Iterator<Long> it = leased.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next() > maxAgeMs) it.remove();
+        }
+        int dropped = before - leased.size();
+        if (dropped > 0) {
+            Log.w(TAG, "Dropped " + dropped + " leaked buffers.");
+        }
+        return dropped;
+    }
+
+    public synchronized int outstanding() { return leased.size(); }
+    public synchronized long hits() { return hits; }
+    public synchronized long misses() { return misses; }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("hits: %d misses: %d outstanding: %d", hits, misses, leased.size());
+    }
+}
@@ -0,0 +1,131 @@
+package com.numericcal.classifierdemo;
+
+/**
+ * Single pass top-K selection over a score array. A bounded min-heap keeps the K best entries
+ * seen so far, so the cost is O(n log K) with no allocation and the input is left untouched
+ * (the old argmax-and-zero loop was O(n K) and destroyed the tensor for other consumers).
+ *
+ * One instance is a reusable result: select() overwrites the previous winners. Not thread safe.
+ */
+public class TopK {
+    private static final String TAG = "AS.TopK";
+
+    private final int capacity;
+    private final int[] idx;
+    private final float[] score;
+    private int count = 0;
+
+    /**
+     * @param k - maximum number of winners, 0 selects nothing
+     */
+    public TopK(int k) {
+        if (k < 0) {
+            throw new IllegalArgumentException("negative k: " + k);
+        }
+        this.capacity = k;
+        this.idx = new int[k];
+        this.score = new float[k];
+    }
+
+    /**
+     * Select the K largest entries of arr[start, stop) that are at least threshold.
+     * Winners end up sorted by descending score, indices relative to start.
+     * @param arr - scores (not modified)
+     * @param start - start index (inclusive)
+     * @param stop - stop index (exclusive)
+     * @param threshold - minimum score to be considered (NaNs never qualify)
+     * @return this, for chaining
+     */
+    public TopK select(float[] arr, int start, int stop, float threshold) {
+        final int k = capacity;
+        final int[] hi = idx;
+        final float[] hs = score;
+        int n = 0;
+
+        if (k == 0) {
+            count = 0;
+            return this;
+        }
+
+        for (int i = start; i < stop; i++) {
+            float v = arr[i];
+            if (!(v >= threshold)) continue;
+
+            if (n < k) {
+                siftUp(hi, hs, n, i - start, v);
+                n += 1;
+            } else if (v > hs[0]) {
+                siftDown(hi, hs, n, i - start, v);
+            }
+        }
+
+        // heap sort: moving the minimum to the back leaves the array in descending order
+        for (int last = n - 1; last > 0; last--) {
+            int topIdx = hi[0];
+            float topScore = hs[0];
+            siftDown(hi, hs, last, hi[last], hs[last]);
+            hi[last] = topIdx;
+            hs[last] = topScore;
+        }
+
+        count = n;
+        return this;
+    }
+
+    /**
+     * Select over the whole array, no threshold.
+     */
+    public TopK select(float[] arr) {
+        return select(arr, 0, arr.length, Float.NEGATIVE_INFINITY);
+    }
+
+    private static void siftUp(int[] hi, float[] hs, int pos, int i, float v) {
+        while (pos > 0) {
+            int parent = (pos - 1) >>> 1;
+            if (hs[parent] <= v) break;
+            hi[pos] = hi[parent];
+            hs[pos] = hs[parent];
+            pos = parent;
+        }
+        hi[pos] = i;
+        hs[pos] = v;
+    }
+
+    // put (i, v) at the root of a heap of size n and restore the heap property
+    private static void siftDown(int[] hi, float[] hs, int n, int i, float v) {
+        int pos = 0;
+        while (true) {
+            int child = 2 * pos + 1;
+            if (child >= n) break;
+            if (child + 1 < n && hs[child + 1] < hs[child]) child += 1;
+            if (v <= hs[child]) break;
+            hi[pos] = hi[child];
+            hs[pos] = hs[child];
+            pos = child;
+        }
+        hi[pos] = i;
+        hs[pos] = v;
+    }
+
+    /**
+     * @return number of winners from the last select (at most K, fewer with a threshold)
+     */
+    public int size() { return count; }
+
+    public int capacity() { return capacity; }
+
+    /**
+     * @param rank - 0 is the best
+     * @return index (relative to start) of the winner
+     */
+    public int index(int rank) { return idx[rank]; }
+
+    /**
+     * @param rank - 0 is the best
+     * @return score of the winner
+     */
+    public float score(int rank) { return score[rank]; }
+
+    // used to turn selected logits into probabilities (FastMath.partialSoftmax)
+    void setScore(int rank, float value) { score[rank] = value; }
+}
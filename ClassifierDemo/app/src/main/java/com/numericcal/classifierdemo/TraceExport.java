@@ -0,0 +1,123 @@
+package com.numericcal.classifierdemo;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Converts a TraceLog file into Chrome trace JSON (chrome://tracing, ui.perfetto.dev). Plain
+ * Java, runs on the desktop against a log pulled from the device:
+ *
+ *   adb pull /sdcard/Android/data/com.numericcal.classifierdemo/files/timing.trc
+ *   adb pull /sdcard/Android/data/com.numericcal.classifierdemo/files/timing.trc.names
+ *   java -cp classes com.numericcal.classifierdemo.TraceExport timing.trc timing.json
+ *
+ * Every stage becomes a complete ("X") event on its thread's track, with the frame id in args.
+ */
+public class TraceExport {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: TraceExport <log.trc> [out.json]");
+            System.exit(1);
+        }
+        File in = new File(args[0]);
+        File out = new File(args.length > 1 ? args[1] : args[0] + ".json");
+
+        long events = convert(in, out);
+        System.out.println(events + " events -> " + out);
+    }
+
+    /**
+     * @param in - TraceLog file (names are read from "<in>.names" if present)
+     * @param out - JSON output
+     * @return number of events written
+     */
+    public static long convert(File in, File out) throws IOException {
+        Map<Integer, String> stages = new HashMap<>();
+        Map<Integer, String> threads = new HashMap<>();
+        readNames(new File(in.getPath() + ".names"), stages, threads);
+
+        try (FileInputStream fis = new FileInputStream(in);
+             FileChannel ch = fis.getChannel();
+             Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(out), "UTF-8"))) {
+
+            ByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+
+            if (buf.getInt(0) != TraceLog.MAGIC || buf.getInt(4) != TraceLog.VERSION) {
+                throw new IOException("not a trace log: " + in);
+            }
+            int capacity = buf.getInt(8);
+            int recSize = buf.getInt(12);
+            long total = buf.getLong(TraceLog.TOTAL_OFFSET);
+
+            // oldest record first once the ring has wrapped
+            long count = Math.min(total, capacity);
+            long first = total - count;
+
+            // timestamps relative to the oldest entry keep the numbers short
+            long base = Long.MAX_VALUE;
+            for (long r = first; r < total; r++) {
+                int off = TraceLog.HEADER_SIZE + (int) (r % capacity) * recSize;
+                base = Math.min(base, buf.getLong(off + 16));
+            }
+
+            w.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[\n");
+            boolean sep = false;
+            for (Map.Entry<Integer, String> e: threads.entrySet()) {
+                if (sep) w.write(",\n");
+                w.write(String.format(Locale.US, "{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":0,\"tid\":%d,\"args\":{\"name\":\"%s\"}}",
+                        e.getKey(), escape(e.getValue())));
+                sep = true;
+            }
+            for (long r = first; r < total; r++) {
+                int off = TraceLog.HEADER_SIZE + (int) (r % capacity) * recSize;
+                long frame = buf.getLong(off);
+                int stage = buf.getInt(off + 8);
+                int thread = buf.getInt(off + 12);
+                long entry = buf.getLong(off + 16);
+                long exit = buf.getLong(off + 24);
+
+                String name = stages.containsKey(stage) ? stages.get(stage) : ("stage" + stage);
+                if (sep) w.write(",\n");
+                w.write(String.format(Locale.US, "{\"name\":\"%s\",\"cat\":\"frame\",\"ph\":\"X\",\"pid\":0,\"tid\":%d,"
+                                + "\"ts\":%.3f,\"dur\":%.3f,\"args\":{\"frame\":%d}}",
+                        escape(name), thread, (entry - base) / 1000.0, (exit - entry) / 1000.0, frame));
+                sep = true;
+            }
+            w.write("\n]}\n");
+            return count;
+        }
+    }
+
+    private static void readNames(File names, Map<Integer, String> stages,
+                                  Map<Integer, String> threads) throws IOException {
+        if (!names.exists()) return;
+        try (BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(names), "UTF-8"))) {
+            String line;
+            while ((line = r.readLine()) != null) {
+                String[] parts = line.split(" ", 3);
+                if (parts.length < 3) continue;
+                Map<Integer, String> dst = "S".equals(parts[0]) ? stages : threads;
+                dst.put(Integer.parseInt(parts[1]), parts[2]);
+            }
+        }
+    }
+
+    private static String escape(String s) {
+        return s.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
@@ -0,0 +1,119 @@
+package com.numericcal.classifierdemo;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import io.reactivex.functions.Function;
+
+/**
+ * Binary per-frame timing log, written through a memory-mapped file so logging a frame is a
+ * handful of absolute puts and no syscalls. The file is a ring of fixed-size records: once
+ * full, the oldest records are overwritten, so it can stay on for hours in bounded space.
+ *
+ * Layout (little endian):
+ *   header: magic "NCTR" (int), version (int), capacity (int), record size (int),
+ *           records written so far (long)
+ *   records: frame id (long), stage id (int), thread id (int), entry ns (long), exit ns (long)
+ *
+ * Stage and thread names go to "<file>.names" on flush()/close(), one "S|T id name" per line.
+ * See TraceExport for the Chrome trace converter.
+ */
+public class TraceLog {
+    private static final String TAG = "AS.TraceLog";
+
+    static final int MAGIC = 0x4E435452; // "NCTR"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 24;
+    static final int RECORD_SIZE = 32;
+    static final int TOTAL_OFFSET = 16;
+
+    private final File file;
+    private final int capacity;
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer buf;
+    private long written = 0;
+
+    /**
+     * @param file - log file, truncated
+     * @param capacity - number of records kept (file size is 24 + 32 * capacity bytes)
+     */
+    public TraceLog(File file, int capacity) throws IOException {
+        this.file = file;
+        this.capacity = capacity;
+
+        file.delete();
+        raf = new RandomAccessFile(file, "rw");
+        long size = HEADER_SIZE + (long) RECORD_SIZE * capacity;
+        buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+
+        buf.putInt(0, MAGIC);
+        buf.putInt(4, VERSION);
+        buf.putInt(8, capacity);
+        buf.putInt(12, RECORD_SIZE);
+        buf.putLong(TOTAL_OFFSET, 0L);
+    }
+
+    /**
+     * Append all stages of a traced token. Untraced tokens are skipped.
+     */
+    public synchronized void append(Tags.MetaData md) {
+        if (!md.traced()) return;
+
+        long frame = md.frameId();
+        for (int i = 0; i < md.size(); i++) {
+            int off = HEADER_SIZE + (int) (written % capacity) * RECORD_SIZE;
+            buf.putLong(off, frame);
+            buf.putInt(off + 8, md.stageId(i));
+            buf.putInt(off + 12, md.threadId(i));
+            buf.putLong(off + 16, md.entryNs(i));
+            buf.putLong(off + 24, md.exitNs(i));
+            written += 1;
+        }
+        buf.putLong(TOTAL_OFFSET, written);
+    }
+
+    /**
+     * Log tokens as they pass by. Place before the last consumer (lpfTT recycles the metadata).
+     */
+    public <T> Function<Tags.TTok<T>, Tags.TTok<T>> logTT() {
+        return ttok -> {
+            append(ttok.md);
+            return ttok;
+        };
+    }
+
+    /**
+     * Write the name table and push the mapped pages to the file.
+     */
+    public synchronized void flush() throws IOException {
+        try (Writer w = new OutputStreamWriter(new FileOutputStream(file.getPath() + ".names"), "UTF-8")) {
+            for (int i = 0; i < Tags.STAGES.size(); i++) {
+                w.write("S " + i + " " + Tags.stageName(i) + "\n");
+            }
+            for (int i = 0; i < Tags.THREADS.size(); i++) {
+                w.write("T " + i + " " + Tags.threadName(i) + "\n");
+            }
+        }
+        buf.force();
+    }
+
+    public synchronized void close() throws IOException {
+        flush();
+        raf.close();
+    }
+
+    public synchronized long written() { return written; }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%s records: %d (capacity %d)", file, written, capacity);
+    }
+}
@@ -1,18 +1,17 @@
 package com.numericcal.classifierdemo;
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.graphics.ImageFormat;
+import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.Matrix;
-import android.graphics.Rect;
-import android.graphics.YuvImage;
+import android.graphics.Paint;
+import android.graphics.RectF;
 import android.util.Pair;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -20,7 +19,9 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.lang.reflect.Array;
+import java.nio.FloatBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -29,6 +30,7 @@ import java.util.concurrent.atomic.AtomicLong;
 
 import io.fotoapparat.preview.Frame;
 import io.reactivex.ObservableTransformer;
+import io.reactivex.functions.Consumer;
 import io.reactivex.functions.Function;
 import io.reactivex.subjects.BehaviorSubject;
 
@@ -53,24 +55,42 @@ public class Utils {
         return res;
     }
 
+    /**
+     * Per stage timing of a token, in ms relative to epoch.
+     * @param ttok - the token
+     * @param epoch - reference time (System.nanoTime)
+     * @return printable report
+     */
     public static <T> String ttokReport(Tags.TTok<T> ttok, Long epoch) {
         StringBuilder str = new StringBuilder();
-        List<Long> diffs = diff(ttok.md.exitTimes);
+        Tags.MetaData md = ttok.md;
 
         str.append("--- NEW FRAME ---");
-        str.append(String.format("epoch: %6d\n", ttok.md.entryTimes.get(0) - epoch));
-        for(int i=0; i<ttok.md.tags.size(); i++) {
-            str.append(String.format("%15s ", ttok.md.tags.get(i)));
-            str.append(String.format("thread: %30s | ", ttok.md.threads.get(i)));
-            str.append(String.format("entry: %6d | ", ttok.md.entryTimes.get(i) - epoch));
-            str.append(String.format("exit: %6d | ", ttok.md.exitTimes.get(i) - epoch));
-            str.append(String.format("stage: %6d | ", ttok.md.exitTimes.get(i) - ttok.md.entryTimes.get(i)));
-            str.append(String.format("handoff: %6d\n", diffs.get(i)));
+        str.append(String.format("epoch: %9.3f\n", ms(md.entryNs(0) - epoch)));
+        for(int i=0; i<md.size(); i++) {
+            long handoff = (i == 0) ? 0L : md.exitNs(i) - md.exitNs(i-1);
+            str.append(String.format("%15s ", md.tag(i)));
+            str.append(String.format("thread: %30s | ", md.thread(i)));
+            str.append(String.format("entry: %9.3f | ", ms(md.entryNs(i) - epoch)));
+            str.append(String.format("exit: %9.3f | ", ms(md.exitNs(i) - epoch)));
+            str.append(String.format("stage: %9.3f | ", ms(md.exitNs(i) - md.entryNs(i))));
+            str.append(String.format("handoff: %9.3f", ms(handoff)));
+            if (md.allocBytes(i) >= 0) {
+                str.append(String.format(" | alloc: %8d B", md.allocBytes(i)));
+            }
+            str.append("\n");
+        }
+        if (md.gcCountSinceSource() > 0) {
+            str.append(String.format("gc: %d (%d ms)\n", md.gcCountSinceSource(), md.gcTimeMsSinceSource()));
         }
 
         return str.toString();
     }
 
+    static float ms(long ns) {
+        return ns * 1e-6f;
+    }
+
     /**
      * A simple printer for arrays during debugging.
      * @param n - how many items to print
@@ -136,19 +156,18 @@ public class Utils {
     }
 
     /**
-     * Find top k labels. Trivial implementation. Complexity k*n is not great.
-     * For small k (2-3) probably faster than to sort. Not important to optimize.
+     * Find top k labels, best first. Single pass with a bounded heap (see TopK), the
+     * probabilities are not modified.
      * @param probs - probability distribution for labels
      * @param labels - list of labels in string forms
      * @param k - how many labels to find
      * @return
      */
     public static List<String> topkLabels(float[] probs, List<String> labels, int k) {
-        List<String> topLabels = new ArrayList<>();
-        for(int i=0; i<k; i++) {
-            int maxPos = Utils.argmax(probs, 0, probs.length);
-            probs[maxPos] = 0.0f;
-            topLabels.add(labels.get(maxPos));
+        TopK top = new TopK(k).select(probs);
+        List<String> topLabels = new ArrayList<>(top.size());
+        for(int i=0; i<top.size(); i++) {
+            topLabels.add(labels.get(top.index(i)));
         }
         return topLabels;
     }
@@ -162,34 +181,11 @@ public class Utils {
      * @param to - write array
      */
     public static void softmax(int len, int fromOffset, float[] from, int toOffset, float[] to) {
-        float acc = 0.0f;
-        float curr;
-
-        float maxVal = max(from, fromOffset, fromOffset + len);
-
-        int readPtr = fromOffset;
-        int writePtr = toOffset;
-
-        for(int k=0; k<len; k++) {
-            curr = (float) Math.exp(from[readPtr] - maxVal); // make sure all exponents negative
-            to[writePtr] = curr;
-            acc += curr;
-
-            readPtr += 1;
-            writePtr += 1;
-        }
-        writePtr = toOffset;
-        for(int k=0; k<len; k++) {
-            to[writePtr] /= acc;
-
-            writePtr += 1;
-        }
+        FastMath.softmax(len, fromOffset, from, toOffset, to);
     }
 
     public static void sigmoidA(float[] inp, float[] outp) {
-        for(int k=0; k<inp.length; k++) {
-            outp[k] = (float) (1.0/(1.0 + Math.exp(-inp[k])));
-        }
+        FastMath.sigmoid(inp, 0, outp, 0, inp.length);
     }
 
     /**
@@ -198,7 +194,7 @@ public class Utils {
      * @return
      */
     public static float sigmoidS(float num) {
-        return (float) (1.0/(1.0 + Math.exp(-num)));
+        return FastMath.sigmoid(num);
     }
 
     /**
@@ -230,6 +226,29 @@ public class Utils {
                         });
     }
 
+    /**
+     * Tagged version: time processor as stage `tag` (see Tags.map). Same as
+     * mkOT(processor, Tags.extract(), Tags.combine(tag)), but untraced tokens skip the timing.
+     */
+    public static <R,Q> ObservableTransformer<Tags.TTok<R>,Tags.TTok<Q>> mkTT(
+            Function<R,Q> processor, String tag) {
+        Function<Tags.TTok<R>,Tags.TTok<Q>> fn = Tags.map(processor, tag);
+        return upstream ->
+                upstream
+                        .map(fn);
+    }
+
+    /**
+     * Same as mkTT(processor, tag), the result is handed to releaser on Tags.release().
+     */
+    public static <R,Q> ObservableTransformer<Tags.TTok<R>,Tags.TTok<Q>> mkTT(
+            Function<R,Q> processor, String tag, Consumer<Q> releaser) {
+        Function<Tags.TTok<R>,Tags.TTok<Q>> fn = Tags.map(processor, tag, releaser);
+        return upstream ->
+                upstream
+                        .map(fn);
+    }
+
     /**
      * Simplified version with default pre/post processor.
      */
@@ -265,104 +284,171 @@ public class Utils {
      * @return a function object Bitmap -> float[]
      */
     public static Function<Bitmap, float[]> bmpToFloat_HWC_RGB(int mean, float std) {
+        return bmpToFloat(new TensorPacker(TensorPacker.Layout.HWC, false, mean, std));
+    }
+
+    /**
+     * Turn a Bitmap into HWC.BGR float buffer.
+     * @param mean - average for normalization
+     * @param std - standard dev for normalization
+     * @return float array flowable
+     */
+    public static Function<Bitmap, float[]> bmpToFloat_HWC_BGR(int mean, float std) {
+        return bmpToFloat(new TensorPacker(TensorPacker.Layout.HWC, true, mean, std));
+    }
+
+    /**
+     * Turn a Bitmap into HWC.RGB float buffer, no normalization.
+     * @return float array flowable
+     */
+    public static Function<Bitmap, float[]> bmpToFloat_HWC_RGB() {
+        return bmpToFloat(new TensorPacker(TensorPacker.Layout.HWC, false, 0.0f, 1.0f));
+    }
+
+    /**
+     * Turn a Bitmap into a float tensor laid out by the packer (HWC/CHW, RGB/BGR, per-channel
+     * normalization).
+     * @param packer - tensor packer
+     * @return a function object Bitmap -> float[]
+     */
+    public static Function<Bitmap, float[]> bmpToFloat(TensorPacker packer) {
         return bmp -> {
             int height = bmp.getHeight();
             int width = bmp.getWidth();
             int size = height * width;
 
             int[] ibuff = new int[size];
-            float[] fbuff = new float[3 * size]; // rgb, each a float
+            float[] fbuff = new float[3 * size]; // 3 channels, each a float
 
             bmp.getPixels(ibuff, 0, width, 0, 0, width, height);
-
-            for (int i = 0; i < ibuff.length; i++) {
-                int val = ibuff[i];
-                fbuff[i * 3 + 0] = (red(val) - mean) / std;
-                fbuff[i * 3 + 1] = (green(val) - mean) / std;
-                fbuff[i * 3 + 2] = (blue(val) - mean) / std;
-            }
+            packer.pack(ibuff, 0, size, size, fbuff);
 
             return fbuff;
-
         };
     }
 
     /**
-     * Turn a Bitmap into HWC.BGR float buffer.
+     * Same as bmpToFloat_HWC_RGB(mean, std), but buffers are leased from a pool. The caller
+     * owns the returned tensor and must release it.
      * @param mean - average for normalization
      * @param std - standard dev for normalization
-     * @return float array flowable
+     * @param pool - tensor buffer pool
+     * @return a function object Bitmap -> float[]
      */
-    public static Function<Bitmap, float[]> bmpToFloat_HWC_BGR(int mean, float std) {
+    public static Function<Bitmap, float[]> bmpToFloat_HWC_RGB(int mean, float std, TensorPool pool) {
+        return bmpToFloat(new TensorPacker(TensorPacker.Layout.HWC, false, mean, std), pool, Stripes.SERIAL);
+    }
+
+    /**
+     * Same as bmpToFloat_HWC_BGR(mean, std), but buffers are leased from a pool.
+     * @param mean - average for normalization
+     * @param std - standard dev for normalization
+     * @param pool - tensor buffer pool
+     * @return a function object Bitmap -> float[]
+     */
+    public static Function<Bitmap, float[]> bmpToFloat_HWC_BGR(int mean, float std, TensorPool pool) {
+        return bmpToFloat(new TensorPacker(TensorPacker.Layout.HWC, true, mean, std), pool, Stripes.SERIAL);
+    }
+
+    /**
+     * Same as bmpToFloat_HWC_RGB(), but buffers are leased from a pool.
+     * @param pool - tensor buffer pool
+     * @return a function object Bitmap -> float[]
+     */
+    public static Function<Bitmap, float[]> bmpToFloat_HWC_RGB(TensorPool pool) {
+        return bmpToFloat(new TensorPacker(TensorPacker.Layout.HWC, false, 0.0f, 1.0f), pool, Stripes.SERIAL);
+    }
+
+    /**
+     * Pooled packing with the pixel loop split into row stripes.
+     * @param packer - tensor packer
+     * @param pool - tensor buffer pool; the caller must release the returned tensor
+     * @param par - row striping
+     * @return a function object Bitmap -> float[]
+     */
+    public static Function<Bitmap, float[]> bmpToFloat(TensorPacker packer, TensorPool pool, Stripes par) {
         return bmp -> {
             int height = bmp.getHeight();
             int width = bmp.getWidth();
             int size = height * width;
 
-            int[] ibuff = new int[size];
-            float[] fbuff = new float[3 * size]; // rgb, each a float
+            int[] ibuff = pool.leaseInts(size);
+            float[] fbuff = pool.leaseFloats(3 * size); // 3 channels, each a float
 
             bmp.getPixels(ibuff, 0, width, 0, 0, width, height);
+            par.run(height, width, 1, (rowStart, rowEnd) ->
+                    packer.pack(ibuff, rowStart * width, rowEnd * width, size, fbuff));
 
-            for (int i = 0; i < ibuff.length; i++) {
-                int val = ibuff[i];
-                fbuff[i * 3 + 0] = (blue(val) - mean) / std;
-                fbuff[i * 3 + 1] = (green(val) - mean) / std;
-                fbuff[i * 3 + 2] = (red(val) - mean) / std;
-            }
-
+            pool.release(ibuff);
             return fbuff;
         };
     }
 
-
     /**
-     * Turn a Bitmap into HWC.BGR float buffer.
-
-     * @return float array flowable
+     * Same as bmpToFloat(packer, pool, par), but the tensor is a pooled direct FloatBuffer.
+     * @param packer - tensor packer
+     * @param pool - tensor buffer pool; the caller must release the returned tensor
+     * @param par - row striping
+     * @return a function object Bitmap -> FloatBuffer
      */
-    public static Function<Bitmap, float[]> bmpToFloat_HWC_RGB() {
+    public static Function<Bitmap, FloatBuffer> bmpToFloatBuffer(TensorPacker packer, TensorPool pool, Stripes par) {
         return bmp -> {
             int height = bmp.getHeight();
             int width = bmp.getWidth();
             int size = height * width;
 
-            int[] ibuff = new int[size];
-            float[] fbuff = new float[3 * size]; // rgb, each a float
+            int[] ibuff = pool.leaseInts(size);
+            FloatBuffer fbuff = pool.leaseDirectFloats(3 * size);
 
             bmp.getPixels(ibuff, 0, width, 0, 0, width, height);
+            par.run(height, width, 1, (rowStart, rowEnd) ->
+                    packer.pack(ibuff, rowStart * width, rowEnd * width, size, fbuff));
 
-            for (int i = 0; i < ibuff.length; i++) {
-
-                int val = ibuff[i];
-                fbuff[i * 3 + 0] = red(val);//(blue(val) - mean) / std;
-                fbuff[i * 3 + 1] = green(val);// - mean) / std;
-                fbuff[i * 3 + 2] = blue(val);// - mean) / std;
-
-            }
-
+            pool.release(ibuff);
             return fbuff;
         };
     }
 
+    /**
+     * Turn a Bitmap into a uint8 HWC tensor (RGB or BGR) for quantized models.
+     * @param bgr - swap red and blue on output
+     * @param pool - tensor buffer pool; the caller must release the returned tensor
+     * @param par - row striping
+     * @return a function object Bitmap -> byte[]
+     */
+    public static Function<Bitmap, byte[]> bmpToByte_HWC(boolean bgr, TensorPool pool, Stripes par) {
+        int first = bgr ? 0 : 2; // channel slot that gets blue
+        int last = bgr ? 2 : 0;  // channel slot that gets red
+        return bmp -> {
+            int height = bmp.getHeight();
+            int width = bmp.getWidth();
+            int size = height * width;
 
+            int[] ibuff = pool.leaseInts(size);
+            byte[] bbuff = pool.leaseBytes(3 * size);
 
+            bmp.getPixels(ibuff, 0, width, 0, 0, width, height);
 
+            par.run(height, width, 1, (rowStart, rowEnd) -> {
+                for (int i = rowStart * width; i < rowEnd * width; i++) {
+                    int val = ibuff[i];
+                    bbuff[i * 3 + last] = (byte) red(val);
+                    bbuff[i * 3 + 1] = (byte) green(val);
+                    bbuff[i * 3 + first] = (byte) blue(val);
+                }
+            });
+
+            pool.release(ibuff);
+            return bbuff;
+        };
+    }
 
     /**
      * Convert YUV NV21 to Bitmap. Fotoapparat will produce NV21 but we need Bitmap for DNN.
      * @return new bitmap flowable
      */
     public static Function<Frame, Bitmap> yuv2bmp() {
-        return f -> {
-            int width = f.getSize().width;
-            int height = f.getSize().height;
-            YuvImage yuv = new YuvImage(f.getImage(), ImageFormat.NV21, width, height, null);
-            ByteArrayOutputStream os = new ByteArrayOutputStream();
-            yuv.compressToJpeg(new Rect(0, 0, width, height), 100, os);
-            byte[] jpegByteArray = os.toByteArray();
-            return BitmapFactory.decodeByteArray(jpegByteArray, 0, jpegByteArray.length);
-        };
+        return Yuv.frameToBmp(Stripes.perCore());
     }
 
     /**
@@ -378,6 +464,34 @@ public class Utils {
         };
     }
 
+    /**
+     * Pooled bitmap rotation. Draws through a Canvas into a leased bitmap; the caller must
+     * release the result.
+     * @param angle - clockwise angle to rotate.
+     * @param pool - bitmap pool
+     * @return rotated bitmap
+     */
+    public static Function<Bitmap, Bitmap> bmpRotate(float angle, BitmapPool pool) {
+        Canvas canvas = new Canvas();
+        Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        Matrix mat = new Matrix();
+        RectF bounds = new RectF();
+        return bmp -> {
+            bounds.set(0, 0, bmp.getWidth(), bmp.getHeight());
+            mat.setRotate(angle);
+            mat.mapRect(bounds);
+            mat.postTranslate(-bounds.left, -bounds.top);
+
+            Bitmap res = pool.lease(Math.round(bounds.width()), Math.round(bounds.height()),
+                    Bitmap.Config.ARGB_8888);
+            res.eraseColor(Color.TRANSPARENT); // non-right angles leave corners uncovered
+            canvas.setBitmap(res);
+            canvas.drawBitmap(bmp, mat, paint);
+            canvas.setBitmap(null);
+            return res;
+        };
+    }
+
     public static <K,V> List<Pair<K,V>> zip(List<K> k, List<V> v) {
         List<Pair<K,V>> res = new ArrayList<>();
         for(int i=0; i<Math.min(k.size(), v.size()); i++) {
@@ -387,16 +501,21 @@ public class Utils {
     }
 
     /**
-     * Simple IIR filter. Gain of 1.
+     * Simple IIR filter. Gain of 1. Results alternate between two buffers, so a result stays
+     * valid until the second call after it (see Smoother for the in-place version).
      * @param vectorSize - number of dimensions to filter
      * @param discount - the pole of the IIR filter
      * @return filtered vector
      */
     public static Utils.Agent<float[], float[], float[]> lpf(int vectorSize, float discount) {
         return new Utils.Agent<float[], float[], float[]>(new float[vectorSize]) {
+            final float[][] results = new float[2][vectorSize];
+            int next = 0;
+
             @Override
             public float[] apply(float[] arg) {
-                float[] res = new float[vectorSize]; // result
+                float[] res = results[next]; // result
+                next ^= 1;
 
                 for(int i=0; i<vectorSize; i++) {
                     state[i] = state[i]*discount + arg[i];
@@ -408,35 +527,62 @@ public class Utils {
     }
 
     /**
-     * Quick and dirty variable-length timestamp diff averaging. NOTE: mutates TTok tags.
+     * Quick and dirty variable-length timestamp diff averaging (exit to exit, in ms). Last
+     * consumer of the token: its metadata is recycled. Untraced tokens skip the filter and
+     * report the last traced result. Filter state is kept per "stage thread" row, so tokens
+     * taking different paths (e.g. scene cache hits) do not mix their stages.
      * @param discount - low pass filtering coefficient
      * @param <T>
      * @return
      */
-    public static <T> Utils.Agent<Tags.TTok<T>, List<Float>, Pair<T,List<Pair<String, Float>>>>
+    public static <T> Utils.Agent<Tags.TTok<T>, float[], Pair<T,List<Pair<String, Float>>>>
     lpfTT(float discount) {
-        return new Agent<Tags.TTok<T>, List<Float>, Pair<T,List<Pair<String, Float>>>>(new ArrayList<>()) {
-            @Override
-            public Pair<T,List<Pair<String, Float>>> apply(Tags.TTok<T> arg) {
-                List<Float> filtered = new ArrayList<>();
-                List<Long> diffs = diff(arg.md.exitTimes);
+        return new Agent<Tags.TTok<T>, float[], Pair<T,List<Pair<String, Float>>>>(new float[0]) {
+            // "stage thread" row names and filter state slots, keyed by interned stage and thread id
+            final Map<Long, String> names = new HashMap<>();
+            final Map<Long, Integer> slots = new HashMap<>();
 
-                int idxOverlap = Math.min(state.size(), diffs.size());
-                int idxMax = Math.max(state.size(), diffs.size());
+            List<Pair<String, Float>> last = new ArrayList<>();
 
-                for(int i=0; i<idxOverlap; i++) {
-                    filtered.add(state.get(i) * discount + (1-discount) * diffs.get(i));
+            @Override
+            public Pair<T,List<Pair<String, Float>>> apply(Tags.TTok<T> arg) {
+                Tags.MetaData md = arg.md;
+                T token = arg.token;
+                if (!md.traced()) {
+                    // nothing measured, keep showing the last traced frame
+                    md.recycle();
+                    return new Pair<>(token, last);
                 }
-
-                if (state.size() < diffs.size()) {
-                    for(int i=idxOverlap; i<idxMax; i++) {
-                        filtered.add((float) diffs.get(i));
+                int len = md.size();
+
+                List<Pair<String, Float>> res = new ArrayList<>(len);
+                for(int i=0; i<len; i++) {
+                    float diff = (i == 0) ? 0.0f : ms(md.exitNs(i) - md.exitNs(i-1));
+                    long key = ((long) md.stageId(i) << 32) | md.threadId(i);
+                    Integer slot = slots.get(key);
+                    if (slot == null) {
+                        slot = slots.size();
+                        slots.put(key, slot);
+                        state = Arrays.copyOf(state, slot + 1);
+                        state[slot] = diff;
+                    } else {
+                        state[slot] = state[slot] * discount + (1-discount) * diff;
                     }
+                    res.add(new Pair<>(rowName(key), state[slot]));
                 }
 
-                state = filtered; // update state
+                last = res;
+                md.recycle();
+                return new Pair<>(token, res);
+            }
 
-                return new Pair<>(arg.token, zip(merge(arg.md.tags, arg.md.threads), filtered));
+            private String rowName(long key) {
+                String name = names.get(key);
+                if (name == null) {
+                    name = Tags.stageName((int) (key >>> 32)) + " " + Tags.threadName((int) key);
+                    names.put(key, name);
+                }
+                return name;
             }
         };
     }
@@ -464,34 +610,28 @@ public class Utils {
      * @return
      */
     static Long maxLatency(Tags.MetaData md) {
-        List<String> threads = md.threads;
-        List<Long> entries = md.entryTimes;
-        List<Long> exits = md.exitTimes;
-
-        // initialize times for all threads
-        Map<String, Long> threadLats = new HashMap<>();
-        for (String thr: threads) {
-            threadLats.put(thr, 0L);
-        }
-        // calculate sums across stages for all threads
-        Long acc = 0L;
-        for(int i=0; i<threads.size(); i++) {
-            String thr = threads.get(i);
-            acc = threadLats.get(thr);
-            threadLats.put(thr, acc + exits.get(i) - entries.get(i));
-        }
-        // pick the longest time
-        Long res = 0L;
-        Long lat = 0L;
-        for (String thr: threads) {
-            lat = threadLats.get(thr);
+        int len = md.size();
+        // per thread sums of stage times; threads are interned so a dense array will do
+        long[] threadLats = new long[Tags.THREADS.size()];
+        long res = 0L;
+        for(int i=0; i<len; i++) {
+            int thr = md.threadId(i);
+            long lat = threadLats[thr] + md.exitNs(i) - md.entryNs(i);
+            threadLats[thr] = lat;
             if (lat > res) res = lat;
         }
-        return (long) (res * 1.05f);
+        // pick the longest time, in ms
+        return (long) (res * 1.05f / 1000000L);
     }
 
-    // experiment in sampling regulation
-    // ignore for now
+    /**
+     * Hysteresis update of a latency estimate: go up right away, come down only when the new
+     * value is more than thresholdLat lower. Changes are published on ps (see FrameSampler).
+     * @param newLat - new measurement
+     * @param oldLat - current estimate, updated in place
+     * @param thresholdLat - hysteresis margin
+     * @param ps - sink for changed estimates
+     */
     static void updateLatency(Long newLat, AtomicLong oldLat,
                               Long thresholdLat, BehaviorSubject<Long> ps) {
         Long currLat = oldLat.get();
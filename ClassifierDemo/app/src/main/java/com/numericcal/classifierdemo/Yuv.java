@@ -0,0 +1,491 @@
+package com.numericcal.classifierdemo;
+
+import android.graphics.Bitmap;
+
+import java.nio.FloatBuffer;
+
+import io.fotoapparat.preview.Frame;
+import io.reactivex.ObservableTransformer;
+import io.reactivex.functions.Function;
+
+/**
+ * Direct NV21 to RGB conversion. Replaces the YuvImage -> JPEG -> BitmapFactory round trip.
+ *
+ * NV21 layout: width*height luma bytes followed by width*height/2 bytes of interleaved V,U
+ * samples, one pair per 2x2 block of pixels.
+ */
+public class Yuv {
+    private static final String TAG = "AS.Yuv";
+
+    /**
+     * Fixed-point (10 bit) BT.601 video range coefficients.
+     * R = 1.164(Y-16) + 1.596(V-128)
+     * G = 1.164(Y-16) - 0.813(V-128) - 0.391(U-128)
+     * B = 1.164(Y-16) + 2.018(U-128)
+     */
+    private static final int CY = 1192;
+    private static final int CRV = 1634;
+    private static final int CGV = 833;
+    private static final int CGU = 400;
+    private static final int CBU = 2066;
+    private static final int MAX_FIXED = 262143; // 255 << 10, rounded up to 18 bits
+
+    /**
+     * Convert rows [rowStart, rowEnd) of an NV21 image into ARGB_8888 pixels.
+     * NOTE: rowStart must be even so stripes do not split a chroma row pair.
+     * @param nv21 - NV21 image
+     * @param width - image width
+     * @param height - image height
+     * @param argb - output, at least width*height ints
+     * @param rowStart - first row (inclusive)
+     * @param rowEnd - last row (exclusive)
+     */
+    public static void nv21ToArgb(byte[] nv21, int width, int height, int[] argb, int rowStart, int rowEnd) {
+        int frameSize = width * height;
+
+        for (int j = rowStart; j < rowEnd; j++) {
+            int yp = j * width;
+            int uvp = frameSize + (j >> 1) * width;
+            int u = 0;
+            int v = 0;
+
+            for (int i = 0; i < width; i++, yp++) {
+                int y = (0xFF & nv21[yp]) - 16;
+                if (y < 0) y = 0;
+                if ((i & 1) == 0) {
+                    v = (0xFF & nv21[uvp++]) - 128;
+                    u = (0xFF & nv21[uvp++]) - 128;
+                }
+
+                int y1192 = CY * y + 512; // round to nearest
+                int r = y1192 + CRV * v;
+                int g = y1192 - CGV * v - CGU * u;
+                int b = y1192 + CBU * u;
+
+                r = r < 0 ? 0 : (r > MAX_FIXED ? MAX_FIXED : r);
+                g = g < 0 ? 0 : (g > MAX_FIXED ? MAX_FIXED : g);
+                b = b < 0 ? 0 : (b > MAX_FIXED ? MAX_FIXED : b);
+
+                argb[yp] = 0xFF000000 | ((r << 6) & 0xFF0000) | ((g >> 2) & 0xFF00) | ((b >> 10) & 0xFF);
+            }
+        }
+    }
+
+    /**
+     * Convert rows [rowStart, rowEnd) of an NV21 image into packed RGB (or BGR) bytes.
+     * @param nv21 - NV21 image
+     * @param width - image width
+     * @param height - image height
+     * @param rgb - output, at least 3*width*height bytes
+     * @param bgr - swap red and blue on output
+     * @param rowStart - first row (inclusive), must be even
+     * @param rowEnd - last row (exclusive)
+     */
+    public static void nv21ToRgb(byte[] nv21, int width, int height, byte[] rgb, boolean bgr,
+                                 int rowStart, int rowEnd) {
+        int frameSize = width * height;
+        int first = bgr ? 2 : 0;
+        int last = bgr ? 0 : 2;
+
+        for (int j = rowStart; j < rowEnd; j++) {
+            int yp = j * width;
+            int op = 3 * yp;
+            int uvp = frameSize + (j >> 1) * width;
+            int u = 0;
+            int v = 0;
+
+            for (int i = 0; i < width; i++, yp++, op += 3) {
+                int y = (0xFF & nv21[yp]) - 16;
+                if (y < 0) y = 0;
+                if ((i & 1) == 0) {
+                    v = (0xFF & nv21[uvp++]) - 128;
+                    u = (0xFF & nv21[uvp++]) - 128;
+                }
+
+                int y1192 = CY * y + 512; // round to nearest
+                int r = y1192 + CRV * v;
+                int g = y1192 - CGV * v - CGU * u;
+                int b = y1192 + CBU * u;
+
+                r = r < 0 ? 0 : (r > MAX_FIXED ? MAX_FIXED : r);
+                g = g < 0 ? 0 : (g > MAX_FIXED ? MAX_FIXED : g);
+                b = b < 0 ? 0 : (b > MAX_FIXED ? MAX_FIXED : b);
+
+                rgb[op + first] = (byte) (r >> 10);
+                rgb[op + 1] = (byte) (g >> 10);
+                rgb[op + last] = (byte) (b >> 10);
+            }
+        }
+    }
+
+    /**
+     * Convert a single YUV sample into packed 0x00RRGGBB.
+     * @param y - luma (0..255)
+     * @param u - blue difference, centered (-128..127)
+     * @param v - red difference, centered (-128..127)
+     * @return packed RGB
+     */
+    static int yuvToRgb(int y, int u, int v) {
+        y -= 16;
+        if (y < 0) y = 0;
+
+        int y1192 = CY * y + 512; // round to nearest
+        int r = y1192 + CRV * v;
+        int g = y1192 - CGV * v - CGU * u;
+        int b = y1192 + CBU * u;
+
+        r = r < 0 ? 0 : (r > MAX_FIXED ? MAX_FIXED : r);
+        g = g < 0 ? 0 : (g > MAX_FIXED ? MAX_FIXED : g);
+        b = b < 0 ? 0 : (b > MAX_FIXED ? MAX_FIXED : b);
+
+        return ((r << 6) & 0xFF0000) | ((g >> 2) & 0xFF00) | ((b >> 10) & 0xFF);
+    }
+
+    /**
+     * Geometry of a fused NV21 -> tensor sampling pass.
+     */
+    public static class Sampling {
+        final int outWidth;
+        final int outHeight;
+        final int rotation;
+        final boolean centerCrop;
+        final boolean area;
+
+        /**
+         * @param outWidth - tensor width
+         * @param outHeight - tensor height
+         * @param rotation - clockwise rotation of the camera frame (0, 90, 180 or 270)
+         * @param centerCrop - crop the largest centered region with the tensor aspect ratio,
+         *                   otherwise stretch the whole frame
+         * @param area - box-average the source footprint (otherwise bilinear)
+         */
+        public Sampling(int outWidth, int outHeight, int rotation, boolean centerCrop, boolean area) {
+            this.outWidth = outWidth;
+            this.outHeight = outHeight;
+            this.rotation = ((rotation % 360) + 360) % 360;
+            this.centerCrop = centerCrop;
+            this.area = area;
+        }
+    }
+
+    /**
+     * Sample an NV21 frame straight into packed RGB pixels, one per output position. Crop,
+     * rotation and scaling are folded into a single index remap: output -> rotated -> source.
+     * @param nv21 - NV21 image
+     * @param width - source width
+     * @param height - source height
+     * @param smp - sampling geometry
+     * @param rgb - output, at least outWidth*outHeight ints (0x00RRGGBB)
+     */
+    public static void sampleNv21(byte[] nv21, int width, int height, Sampling smp, int[] rgb) {
+        sampleNv21(nv21, width, height, smp, rgb, 0, smp.outHeight);
+    }
+
+    /**
+     * Sample output rows [rowStart, rowEnd) only. See sampleNv21 above.
+     */
+    public static void sampleNv21(byte[] nv21, int width, int height, Sampling smp, int[] rgb,
+                                  int rowStart, int rowEnd) {
+        boolean quarter = smp.rotation == 90 || smp.rotation == 270;
+        int rotWidth = quarter ? height : width;
+        int rotHeight = quarter ? width : height;
+
+        float cropWidth = rotWidth;
+        float cropHeight = rotHeight;
+        if (smp.centerCrop) {
+            float scale = Math.min((float) rotWidth / smp.outWidth, (float) rotHeight / smp.outHeight);
+            cropWidth = smp.outWidth * scale;
+            cropHeight = smp.outHeight * scale;
+        }
+        float left = (rotWidth - cropWidth) / 2.0f;
+        float top = (rotHeight - cropHeight) / 2.0f;
+        float stepX = cropWidth / smp.outWidth;
+        float stepY = cropHeight / smp.outHeight;
+
+        // rotated (rx, ry) -> source (ax*rx + bx*ry + cx, ay*rx + by*ry + cy)
+        int ax, bx, cx, ay, by, cy;
+        switch (smp.rotation) {
+            case 90:  ax = 0;  bx = 1;  cx = 0;         ay = -1; by = 0;  cy = height - 1; break;
+            case 180: ax = -1; bx = 0;  cx = width - 1; ay = 0;  by = -1; cy = height - 1; break;
+            case 270: ax = 0;  bx = -1; cx = width - 1; ay = 1;  by = 0;  cy = 0;          break;
+            default:  ax = 1;  bx = 0;  cx = 0;         ay = 0;  by = 1;  cy = 0;          break;
+        }
+
+        int frameSize = width * height;
+        int op = rowStart * smp.outWidth;
+        for (int oy = rowStart; oy < rowEnd; oy++) {
+            for (int ox = 0; ox < smp.outWidth; ox++, op++) {
+                if (smp.area) {
+                    int rx0 = (int) (left + ox * stepX);
+                    int ry0 = (int) (top + oy * stepY);
+                    int rx1 = Math.max(rx0, (int) Math.ceil(left + (ox + 1) * stepX) - 1);
+                    int ry1 = Math.max(ry0, (int) Math.ceil(top + (oy + 1) * stepY) - 1);
+                    rx1 = Math.min(rx1, rotWidth - 1);
+                    ry1 = Math.min(ry1, rotHeight - 1);
+
+                    int sxa = ax * rx0 + bx * ry0 + cx;
+                    int sya = ay * rx0 + by * ry0 + cy;
+                    int sxb = ax * rx1 + bx * ry1 + cx;
+                    int syb = ay * rx1 + by * ry1 + cy;
+                    int sx0 = Math.min(sxa, sxb);
+                    int sx1 = Math.max(sxa, sxb);
+                    int sy0 = Math.min(sya, syb);
+                    int sy1 = Math.max(sya, syb);
+
+                    int ySum = 0;
+                    for (int sy = sy0; sy <= sy1; sy++) {
+                        int row = sy * width;
+                        for (int sx = sx0; sx <= sx1; sx++) {
+                            ySum += 0xFF & nv21[row + sx];
+                        }
+                    }
+                    int uSum = 0;
+                    int vSum = 0;
+                    int cCount = 0;
+                    for (int cy2 = sy0 >> 1; cy2 <= sy1 >> 1; cy2++) {
+                        int row = frameSize + cy2 * width;
+                        for (int cx2 = sx0 >> 1; cx2 <= sx1 >> 1; cx2++) {
+                            vSum += 0xFF & nv21[row + 2 * cx2];
+                            uSum += 0xFF & nv21[row + 2 * cx2 + 1];
+                            cCount += 1;
+                        }
+                    }
+                    int yCount = (sx1 - sx0 + 1) * (sy1 - sy0 + 1);
+                    rgb[op] = yuvToRgb(ySum / yCount, uSum / cCount - 128, vSum / cCount - 128);
+                } else {
+                    float rx = left + (ox + 0.5f) * stepX - 0.5f;
+                    float ry = top + (oy + 0.5f) * stepY - 0.5f;
+                    float sx = ax * rx + bx * ry + cx;
+                    float sy = ay * rx + by * ry + cy;
+                    sx = sx < 0 ? 0 : (sx > width - 1 ? width - 1 : sx);
+                    sy = sy < 0 ? 0 : (sy > height - 1 ? height - 1 : sy);
+
+                    int x0 = (int) sx;
+                    int y0 = (int) sy;
+                    int x1 = Math.min(x0 + 1, width - 1);
+                    int y1 = Math.min(y0 + 1, height - 1);
+                    int fx = (int) ((sx - x0) * 256); // 8 bit weights
+                    int fy = (int) ((sy - y0) * 256);
+
+                    int top0 = (0xFF & nv21[y0 * width + x0]) * (256 - fx) + (0xFF & nv21[y0 * width + x1]) * fx;
+                    int bot0 = (0xFF & nv21[y1 * width + x0]) * (256 - fx) + (0xFF & nv21[y1 * width + x1]) * fx;
+                    int y = (top0 * (256 - fy) + bot0 * fy + (1 << 15)) >> 16;
+
+                    int uvp = frameSize + ((int) (sy + 0.5f) >> 1) * width + (((int) (sx + 0.5f) >> 1) << 1);
+                    rgb[op] = yuvToRgb(y, (0xFF & nv21[uvp + 1]) - 128, (0xFF & nv21[uvp]) - 128);
+                }
+            }
+        }
+    }
+
+    /**
+     * Fused NV21 -> normalized HWC.RGB float tensor. Replaces yuv2bmp, rotation, scaling and
+     * bmpToFloat_HWC_RGB with a single pass that never builds an intermediate Bitmap.
+     * @param smp - sampling geometry
+     * @param mean - average for normalization
+     * @param std - standard dev for normalization
+     * @param pool - tensor buffer pool; the caller must release the returned tensor
+     * @return a function object Frame -> float[]
+     */
+    public static Function<Frame, float[]> nv21ToFloat_HWC_RGB(Sampling smp, int mean, float std,
+                                                             TensorPool pool) {
+        return nv21ToFloat(smp, new TensorPacker(TensorPacker.Layout.HWC, false, mean, std), pool, Stripes.SERIAL);
+    }
+
+    /**
+     * Fused NV21 -> float tensor laid out by the packer, with the sampling split into row
+     * stripes of the output tensor. Striping mostly pays off for large DNN inputs or area
+     * sampling of high resolution frames.
+     * @param smp - sampling geometry
+     * @param packer - tensor packer (layout, channel order, normalization)
+     * @param pool - tensor buffer pool; the caller must release the returned tensor
+     * @param par - row striping
+     * @return a function object Frame -> float[]
+     */
+    public static Function<Frame, float[]> nv21ToFloat(Sampling smp, TensorPacker packer,
+                                                     TensorPool pool, Stripes par) {
+        int size = smp.outWidth * smp.outHeight;
+
+        return new Utils.Agent<Frame, int[], float[]>(new int[size]) {
+            @Override
+            public float[] apply(Frame f) {
+                byte[] nv21 = f.getImage();
+                int width = f.getSize().width;
+                int height = f.getSize().height;
+                int[] rgb = state;
+                float[] fbuff = pool.leaseFloats(3 * size);
+
+                par.run(smp.outHeight, smp.outWidth, 1, (rowStart, rowEnd) -> {
+                    sampleNv21(nv21, width, height, smp, rgb, rowStart, rowEnd);
+                    packer.pack(rgb, rowStart * smp.outWidth, rowEnd * smp.outWidth, size, fbuff);
+                });
+                return fbuff;
+            }
+        };
+    }
+
+    /**
+     * Same as nv21ToFloat, but the tensor is a pooled direct FloatBuffer.
+     * @param smp - sampling geometry
+     * @param packer - tensor packer (layout, channel order, normalization)
+     * @param pool - tensor buffer pool; the caller must release the returned tensor
+     * @param par - row striping
+     * @return a function object Frame -> FloatBuffer
+     */
+    public static Function<Frame, FloatBuffer> nv21ToFloatBuffer(Sampling smp, TensorPacker packer,
+                                                               TensorPool pool, Stripes par) {
+        int size = smp.outWidth * smp.outHeight;
+
+        return new Utils.Agent<Frame, int[], FloatBuffer>(new int[size]) {
+            @Override
+            public FloatBuffer apply(Frame f) {
+                byte[] nv21 = f.getImage();
+                int width = f.getSize().width;
+                int height = f.getSize().height;
+                int[] rgb = state;
+                FloatBuffer fbuff = pool.leaseDirectFloats(3 * size);
+
+                par.run(smp.outHeight, smp.outWidth, 1, (rowStart, rowEnd) -> {
+                    sampleNv21(nv21, width, height, smp, rgb, rowStart, rowEnd);
+                    packer.pack(rgb, rowStart * smp.outWidth, rowEnd * smp.outWidth, size, fbuff);
+                });
+                return fbuff;
+            }
+        };
+    }
+
+    /**
+     * Fused NV21 -> uint8 HWC tensor (RGB or BGR) for quantized models. No normalization.
+     * @param smp - sampling geometry
+     * @param bgr - swap red and blue on output
+     * @param pool - tensor buffer pool; the caller must release the returned tensor
+     * @param par - row striping
+     * @return a function object Frame -> byte[]
+     */
+    public static Function<Frame, byte[]> nv21ToByte_HWC(Sampling smp, boolean bgr,
+                                                        TensorPool pool, Stripes par) {
+        int size = smp.outWidth * smp.outHeight;
+        int first = bgr ? 2 : 0; // channel slot that gets red
+        int last = bgr ? 0 : 2;  // channel slot that gets blue
+
+        return new Utils.Agent<Frame, int[], byte[]>(new int[size]) {
+            @Override
+            public byte[] apply(Frame f) {
+                byte[] nv21 = f.getImage();
+                int width = f.getSize().width;
+                int height = f.getSize().height;
+                int[] rgb = state;
+                byte[] bbuff = pool.leaseBytes(3 * size);
+
+                par.run(smp.outHeight, smp.outWidth, 1, (rowStart, rowEnd) -> {
+                    sampleNv21(nv21, width, height, smp, rgb, rowStart, rowEnd);
+                    for (int i = rowStart * smp.outWidth; i < rowEnd * smp.outWidth; i++) {
+                        int val = rgb[i];
+                        bbuff[i * 3 + first] = (byte) Utils.red(val);
+                        bbuff[i * 3 + 1] = (byte) Utils.green(val);
+                        bbuff[i * 3 + last] = (byte) Utils.blue(val);
+                    }
+                });
+                return bbuff;
+            }
+        };
+    }
+
+    /**
+     * Whole-image conversion, optionally split into row stripes.
+     * @param nv21 - NV21 image
+     * @param width - image width
+     * @param height - image height
+     * @param argb - output buffer
+     * @param par - row striping
+     */
+    public static void nv21ToArgb(byte[] nv21, int width, int height, int[] argb, Stripes par) {
+        par.run(height, width, 2, (rowStart, rowEnd) ->
+                nv21ToArgb(nv21, width, height, argb, rowStart, rowEnd));
+    }
+
+    /**
+     * Whole-image conversion, optionally split into row stripes that run in parallel.
+     * @param nv21 - NV21 image
+     * @param width - image width
+     * @param height - image height
+     * @param argb - output buffer
+     * @param stripes - number of row stripes (1 means run on the calling thread)
+     */
+    public static void nv21ToArgb(byte[] nv21, int width, int height, int[] argb, int stripes) {
+        nv21ToArgb(nv21, width, height, argb, new Stripes(stripes, 0));
+    }
+
+    /**
+     * Raw-buffer variant. The returned array is owned by the agent and reused for every frame,
+     * so it is only valid until the next call.
+     * @param par - row striping
+     * @return a function object Frame -> ARGB pixels
+     */
+    public static Utils.Agent<Frame, int[], int[]> frameToArgb(Stripes par) {
+        return new Utils.Agent<Frame, int[], int[]>(new int[0]) {
+            @Override
+            public int[] apply(Frame f) {
+                int width = f.getSize().width;
+                int height = f.getSize().height;
+                if (state.length != width * height) {
+                    state = new int[width * height];
+                }
+                nv21ToArgb(f.getImage(), width, height, state, par);
+                return state;
+            }
+        };
+    }
+
+    /**
+     * Frame -> Bitmap through a reused pixel buffer.
+     * @param par - row striping
+     * @return new bitmap function
+     */
+    public static Function<Frame, Bitmap> frameToBmp(Stripes par) {
+        Utils.Agent<Frame, int[], int[]> pixels = frameToArgb(par);
+        return f -> {
+            int width = f.getSize().width;
+            int height = f.getSize().height;
+            Bitmap bmp = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            bmp.setPixels(pixels.apply(f), 0, width, 0, 0, width, height);
+            return bmp;
+        };
+    }
+
+    /**
+     * Frame -> pooled Bitmap. The caller must release the result.
+     * @param par - row striping
+     * @param pool - bitmap pool
+     * @return pooled bitmap function
+     */
+    public static Function<Frame, Bitmap> frameToBmp(Stripes par, BitmapPool pool) {
+        Utils.Agent<Frame, int[], int[]> pixels = frameToArgb(par);
+        return f -> {
+            int width = f.getSize().width;
+            int height = f.getSize().height;
+            Bitmap bmp = pool.lease(width, height, Bitmap.Config.ARGB_8888);
+            bmp.setPixels(pixels.apply(f), 0, width, 0, 0, width, height);
+            return bmp;
+        };
+    }
+
+    /**
+     * Same as yuv2bmp(par), but the bitmaps are leased from a pool.
+     * @param par - row striping
+     * @param pool - bitmap pool
+     * @return pooled bitmap flowable
+     */
+    public static ObservableTransformer<Frame, Bitmap> yuv2bmp(Stripes par, BitmapPool pool) {
+        return upstream -> upstream.map(frameToBmp(par, pool));
+    }
+
+    /**
+     * Drop-in replacement for Camera.yuv2bmp().
+     * @param par - row striping
+     * @return new bitmap flowable
+     */
+    public static ObservableTransformer<Frame, Bitmap> yuv2bmp(Stripes par) {
+        return upstream -> upstream.map(frameToBmp(par));
+    }
+}
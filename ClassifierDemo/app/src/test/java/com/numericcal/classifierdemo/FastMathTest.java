@@ -0,0 +1,133 @@
+package com.numericcal.classifierdemo;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * FastMath kernels against double precision references, plus the -Inf/NaN edge cases of
+ * logSumExp and partialSoftmax.
+ */
+public class FastMathTest {
+    private static final float NEG_INF = Float.NEGATIVE_INFINITY;
+
+    private static double refLogSumExp(float[] arr) {
+        double m = Double.NEGATIVE_INFINITY;
+        for (float x: arr) m = Math.max(m, x);
+        double s = 0.0;
+        for (float x: arr) s += Math.exp(x - m);
+        return m + Math.log(s);
+    }
+
+    private static float[] randomLogits(Random rnd, int n, float scale) {
+        float[] arr = new float[n];
+        for (int i = 0; i < n; i++) arr[i] = (rnd.nextFloat() - 0.5f) * scale;
+        return arr;
+    }
+
+    @Test
+    public void expRelativeError() {
+        for (float x = -87.0f; x < 88.0f; x += 0.01f) {
+            double ref = Math.exp(x);
+            assertEquals("exp(" + x + ")", 1.0, FastMath.exp(x) / ref, 3e-7);
+        }
+    }
+
+    @Test
+    public void expLimits() {
+        assertEquals(1.0f, FastMath.exp(0.0f), 0.0f);
+        assertEquals(0.0f, FastMath.exp(-100.0f), 0.0f);
+        assertEquals(0.0f, FastMath.exp(NEG_INF), 0.0f);
+        assertEquals(Float.POSITIVE_INFINITY, FastMath.exp(100.0f), 0.0f);
+    }
+
+    @Test
+    public void softmaxMatchesReference() {
+        Random rnd = new Random(1);
+        float[] logits = randomLogits(rnd, 1000, 40.0f);
+        float[] probs = new float[logits.length];
+        FastMath.softmax(logits.length, 0, logits, 0, probs);
+
+        double lse = refLogSumExp(logits);
+        double sum = 0.0;
+        for (int i = 0; i < logits.length; i++) {
+            assertEquals(Math.exp(logits[i] - lse), probs[i], 1e-6);
+            sum += probs[i];
+        }
+        assertEquals(1.0, sum, 1e-5);
+    }
+
+    @Test
+    public void logSumExpMatchesReference() {
+        Random rnd = new Random(2);
+        for (float scale: new float[] {1.0f, 20.0f, 2000.0f}) {
+            float[] logits = randomLogits(rnd, 1001, scale);
+            assertEquals(refLogSumExp(logits), FastMath.logSumExp(logits, 0, logits.length),
+                    1e-5 * Math.max(1.0, scale));
+        }
+    }
+
+    @Test
+    public void logSumExpSkipsNegativeInfinity() {
+        float[] logits = {NEG_INF, 1.0f, NEG_INF, 2.0f};
+        assertEquals(refLogSumExp(new float[] {1.0f, 2.0f}), FastMath.logSumExp(logits, 0, 4), 1e-6);
+    }
+
+    @Test
+    public void logSumExpAllNegativeInfinity() {
+        float[] logits = {NEG_INF, NEG_INF, NEG_INF};
+        assertEquals(NEG_INF, FastMath.logSumExp(logits, 0, 3), 0.0f);
+        assertEquals(NEG_INF, FastMath.logSumExp(logits, 0, 0), 0.0f);
+    }
+
+    @Test
+    public void logSumExpNaN() {
+        assertTrue(Float.isNaN(FastMath.logSumExp(new float[] {Float.NaN, 1.0f}, 0, 2)));
+        assertTrue(Float.isNaN(FastMath.logSumExp(new float[] {1.0f, Float.NaN}, 0, 2)));
+        assertTrue(Float.isNaN(FastMath.logSumExp(new float[] {NEG_INF, Float.NaN}, 0, 2)));
+    }
+
+    @Test
+    public void partialSoftmaxMatchesFull() {
+        Random rnd = new Random(3);
+        float[] logits = randomLogits(rnd, 1000, 20.0f);
+        float[] copy = logits.clone();
+        float[] probs = new float[logits.length];
+        FastMath.softmax(logits.length, 0, logits, 0, probs);
+
+        TopK full = new TopK(5).select(probs);
+        TopK top = FastMath.partialSoftmax(logits, 0, logits.length, 0.0f, new TopK(5));
+        assertEquals(5, top.size());
+        for (int r = 0; r < 5; r++) {
+            assertEquals(full.index(r), top.index(r));
+            assertEquals(full.score(r), top.score(r), 1e-6);
+        }
+        assertArrayEquals(copy, logits, 0.0f);
+    }
+
+    @Test
+    public void partialSoftmaxThreshold() {
+        // probabilities 0.5, 0.25, 0.25 (logits are logs of them)
+        float[] logits = {(float) Math.log(2.0), 0.0f, 0.0f};
+        TopK top = FastMath.partialSoftmax(logits, 0, 3, 0.3f, new TopK(3));
+        assertEquals(1, top.size());
+        assertEquals(0, top.index(0));
+        assertEquals(0.5f, top.score(0), 1e-6f);
+    }
+
+    @Test
+    public void partialSoftmaxAllNegativeInfinity() {
+        float[] logits = {NEG_INF, NEG_INF, NEG_INF};
+        assertEquals(0, FastMath.partialSoftmax(logits, 0, 3, 0.0f, new TopK(2)).size());
+        assertEquals(0, FastMath.partialSoftmax(logits, 0, 3, 0.1f, new TopK(2)).size());
+    }
+
+    @Test
+    public void partialSoftmaxNaN() {
+        float[] logits = {0.5f, Float.NaN, 0.1f};
+        TopK top = new TopK(2).select(new float[] {1.0f, 2.0f});
+        assertEquals(0, FastMath.partialSoftmax(logits, 0, 3, 0.0f, top).size());
+    }
+}
@@ -0,0 +1,56 @@
+package com.numericcal.classifierdemo;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * FrameSampler pacing from frame ages, for untraced and late frames.
+ */
+public class FrameSamplerTest {
+
+    // a source token that entered the chain ageMs ago
+    private static Tags.TTok<String> aged(long ageMs) throws Exception {
+        Tags.TTok<String> ttok = Tags.<String>srcTag("source").apply("frame");
+        ttok.md.entryTimes[0] -= ageMs * 1000000L;
+        return ttok;
+    }
+
+    @Test
+    public void untracedFramesPace() throws Exception {
+        Tags.setTracing(Tags.Level.OFF, 1);
+        try {
+            FrameSampler sampler = new FrameSampler(1.0f, 30.0f, 15, 2);
+            Tags.TTok<String> ttok = aged(300);
+            assertFalse(ttok.md.traced());
+
+            sampler.<String>observeTT().apply(ttok);
+            // two frames in flight, 300 ms each: one frame every 150 ms
+            assertTrue(sampler.intervalMs() >= 150 && sampler.intervalMs() < 160);
+        } finally {
+            Tags.setTracing(Tags.Level.FULL, 1);
+        }
+    }
+
+    @Test
+    public void lateFramesPace() throws Exception {
+        FrameSampler sampler = new FrameSampler(1.0f, 30.0f, 15, 2);
+        Deadline deadline = new Deadline(100);
+        deadline.onLate(sampler::observe);
+
+        Tags.TTok<String> ttok = deadline.<String>stamp().apply(aged(400));
+        assertFalse(deadline.<String>check("classifier").test(ttok));
+        assertEquals(1, deadline.dropped());
+        assertTrue(sampler.intervalMs() >= 200);
+    }
+
+    @Test
+    public void cachedFramesIgnored() throws Exception {
+        FrameSampler sampler = new FrameSampler(1.0f, 30.0f, 15, 2);
+        long start = sampler.intervalMs();
+        Tags.TTok<String> ttok = aged(600);
+        ttok.md.cached = true;
+        sampler.observe(ttok.md);
+        assertEquals(start, sampler.intervalMs());
+    }
+}
@@ -0,0 +1,77 @@
+package com.numericcal.classifierdemo;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * LatencyHistogram bucketing, percentiles and merging.
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucketsCoverValue() {
+        Random rnd = new Random(5);
+        for (int i = 0; i < 100000; i++) {
+            long ns = (rnd.nextLong() >>> 1) >>> rnd.nextInt(63);
+            int b = LatencyHistogram.bucket(ns);
+            long lo = LatencyHistogram.lowerBound(b);
+            assertTrue(ns + " below bucket " + b, lo <= ns);
+            assertTrue(ns + " above bucket " + b, ns - lo < LatencyHistogram.width(b));
+        }
+    }
+
+    @Test
+    public void emptyAndNegative() {
+        LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0, h.percentile(0.5));
+        h.record(-5);
+        assertEquals(1, h.count());
+        assertEquals(0, h.percentile(0.5));
+    }
+
+    @Test
+    public void percentilesWithinBucketError() {
+        Random rnd = new Random(6);
+        int n = 10000;
+        long[] vals = new long[n];
+        LatencyHistogram h = new LatencyHistogram();
+        for (int i = 0; i < n; i++) {
+            vals[i] = 100000 + rnd.nextInt(50000000);
+            h.record(vals[i]);
+        }
+        Arrays.sort(vals);
+
+        for (double q: new double[] {0.5, 0.9, 0.99}) {
+            long exact = vals[(int) Math.ceil(q * n) - 1];
+            assertEquals("p" + q, exact, h.percentile(q), exact / 16.0 + 1);
+        }
+        assertEquals(vals[n - 1], h.max());
+        assertTrue(h.percentile(1.0) <= h.max());
+    }
+
+    @Test
+    public void addMergesCounts() {
+        LatencyHistogram a = new LatencyHistogram();
+        LatencyHistogram b = new LatencyHistogram();
+        LatencyHistogram both = new LatencyHistogram();
+        for (long ns = 1; ns < 1000000; ns = ns * 3 + 1) {
+            a.record(ns);
+            both.record(ns);
+            b.record(2 * ns);
+            both.record(2 * ns);
+        }
+        a.add(b);
+        assertEquals(both.count(), a.count());
+        assertEquals(both.max(), a.max());
+        assertEquals(both.percentile(0.5), a.percentile(0.5));
+        assertEquals(both.percentile(0.9), a.percentile(0.9));
+
+        a.reset();
+        assertEquals(0, a.count());
+        assertEquals(0, a.max());
+    }
+}
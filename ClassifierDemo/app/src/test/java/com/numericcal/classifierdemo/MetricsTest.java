@@ -0,0 +1,85 @@
+package com.numericcal.classifierdemo;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Metrics counters, snapshots and rates.
+ */
+public class MetricsTest {
+
+    @Test
+    public void counterExactUnderContention() throws InterruptedException {
+        Metrics.Counter cnt = new Metrics.Counter();
+        int threads = 8;
+        int perThread = 100000;
+
+        Thread[] ts = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            ts[t] = new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    if ((i & 1) == 0) cnt.inc(); else cnt.add(2);
+                }
+            });
+        }
+        for (Thread t: ts) t.start();
+        for (Thread t: ts) t.join();
+
+        assertEquals((long) threads * perThread / 2 * 3, cnt.get());
+    }
+
+    @Test
+    public void registryAndSnapshot() {
+        Metrics metrics = new Metrics();
+        metrics.counter("frames.captured").add(5);
+        assertSame(metrics.counter("frames.captured"), metrics.counter("frames.captured"));
+        metrics.gauge("pool.outstanding", () -> 3L);
+
+        Metrics.Snapshot snap = metrics.snapshot();
+        assertEquals(5L, snap.get("frames.captured"));
+        assertEquals(3L, snap.get("pool.outstanding"));
+        assertEquals(0L, snap.get("missing"));
+    }
+
+    @Test
+    public void rate() {
+        Map<String, Long> a = new LinkedHashMap<>();
+        a.put("frames", 10L);
+        Map<String, Long> b = new LinkedHashMap<>();
+        b.put("frames", 40L);
+
+        Metrics.Snapshot prev = new Metrics.Snapshot(1000000000L, a);
+        Metrics.Snapshot snap = new Metrics.Snapshot(1500000000L, b);
+        assertEquals(60.0f, snap.rate("frames", prev), 1e-3f);
+        // no time passed
+        assertEquals(0.0f, snap.rate("frames", snap), 0.0f);
+    }
+
+    @Test
+    public void dumpAppendsJsonLines() throws Exception {
+        Map<String, Long> vals = new LinkedHashMap<>();
+        vals.put("a", 1L);
+        vals.put("b", 2L);
+        Metrics.Snapshot snap = new Metrics.Snapshot(2000000L, vals);
+        assertEquals("{\"t_ms\":2,\"a\":1,\"b\":2}", snap.toJson());
+
+        File file = File.createTempFile("metrics", ".jsonl");
+        try {
+            Metrics.dump(file, snap);
+            Metrics.dump(file, snap);
+            List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+            assertEquals(2, lines.size());
+            assertEquals(snap.toJson(), lines.get(1));
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package com.numericcal.classifierdemo;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * StageStats windows and recorder lifetime.
+ */
+public class StageStatsTest {
+
+    private static Thread recordOn(int stage, long ns) throws InterruptedException {
+        Thread t = new Thread(() -> StageStats.recorder(0).record(stage, ns));
+        t.start();
+        t.join();
+        return t;
+    }
+
+    @Test
+    public void deadThreadsDroppedOnNewWindow() throws InterruptedException {
+        int stage = Tags.stageId("stageStatsTest");
+        StageStats.newWindow();
+        int base = StageStats.recorderCount();
+
+        for (int i = 0; i < 10; i++) {
+            recordOn(stage, 1000000);
+        }
+        assertEquals(base + 10, StageStats.recorderCount());
+
+        // the window they recorded in still sees them
+        LatencyHistogram h = StageStats.snapshot(false).get("stageStatsTest");
+        assertNotNull(h);
+        assertEquals(10, h.count());
+
+        StageStats.newWindow();
+        assertEquals(base, StageStats.recorderCount());
+        assertNull(StageStats.snapshot(false).get("stageStatsTest"));
+    }
+
+    @Test
+    public void liveRecorderSurvivesAndResets() {
+        int stage = Tags.stageId("stageStatsLive");
+        StageStats.Recorder rec = StageStats.recorder(0);
+        rec.record(stage, 2000000);
+        rec.record(stage, 3000000);
+        Map<String, LatencyHistogram> snap = StageStats.snapshot(false);
+        assertEquals(2, snap.get("stageStatsLive").count());
+
+        StageStats.newWindow();
+        rec.record(stage, 4000000);
+        assertEquals(1, StageStats.snapshot(false).get("stageStatsLive").count());
+    }
+}
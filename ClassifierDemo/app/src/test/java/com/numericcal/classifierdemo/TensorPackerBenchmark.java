@@ -0,0 +1,56 @@
+package com.numericcal.classifierdemo;
+
+import java.util.Locale;
+
+/**
+ * Host microbenchmark: TensorPacker against the per-pixel (c - mean) / std HWC loop it
+ * replaced, on a 224x224 input. Not part of the unit tests, run it by hand against the test
+ * classes:
+ *
+ *   java -cp classes com.numericcal.classifierdemo.TensorPackerBenchmark
+ *
+ * Prints the best of several rounds in ns per pixel for each variant.
+ */
+public class TensorPackerBenchmark {
+    private static final int SIZE = 224;
+    private static final int MEAN = 128;
+    private static final float STD = 128.0f;
+    private static final int WARMUP = 300;
+    private static final int ROUNDS = 5;
+    private static final int ITERATIONS = 200;
+
+    private interface Kernel {
+        void run();
+    }
+
+    // best of ROUNDS, ns per pixel
+    private static double time(Kernel k, int pixels) {
+        for (int i = 0; i < WARMUP; i++) k.run();
+        long best = Long.MAX_VALUE;
+        for (int r = 0; r < ROUNDS; r++) {
+            long t0 = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) k.run();
+            best = Math.min(best, System.nanoTime() - t0);
+        }
+        return (double) best / ITERATIONS / pixels;
+    }
+
+    public static void main(String[] args) {
+        int n = SIZE * SIZE;
+        int[] pix = TensorPackerTest.randomPixels(n, 42);
+
+        float[] base = new float[3 * n];
+        float[] hwc = new float[3 * n];
+        float[] chw = new float[3 * n];
+        TensorPacker hwcPacker = new TensorPacker(TensorPacker.Layout.HWC, false, MEAN, STD);
+        TensorPacker chwPacker = new TensorPacker(TensorPacker.Layout.CHW, false, MEAN, STD);
+
+        double tBase = time(() -> TensorPackerTest.baselineHWC(pix, base, MEAN, STD), n);
+        double tHwc = time(() -> hwcPacker.pack(pix, 0, n, n, hwc), n);
+        double tChw = time(() -> chwPacker.pack(pix, 0, n, n, chw), n);
+
+        System.out.println(String.format(Locale.US,
+                "224x224 ns/pixel: baseline HWC %.3f, packer HWC %.3f (%.2fx), packer CHW %.3f (%.2fx)",
+                tBase, tHwc, tBase / tHwc, tChw, tBase / tChw));
+    }
+}
@@ -0,0 +1,99 @@
+package com.numericcal.classifierdemo;
+
+import org.junit.Test;
+
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * TensorPacker against the per-pixel (c - mean) / std HWC loop it replaced.
+ */
+public class TensorPackerTest {
+    private static final int W = 31;
+    private static final int H = 17;
+    private static final int MEAN = 128;
+    private static final float STD = 128.0f;
+
+    // the loop from Utils.bmpToFloat_HWC_RGB before the packer
+    static void baselineHWC(int[] pix, float[] out, int mean, float std) {
+        for (int i = 0; i < pix.length; i++) {
+            int val = pix[i];
+            out[i * 3 + 0] = (((val >> 16) & 0xFF) - mean) / std;
+            out[i * 3 + 1] = (((val >> 8) & 0xFF) - mean) / std;
+            out[i * 3 + 2] = ((val & 0xFF) - mean) / std;
+        }
+    }
+
+    static int[] randomPixels(int n, long seed) {
+        Random rnd = new Random(seed);
+        int[] pix = new int[n];
+        for (int i = 0; i < n; i++) pix[i] = 0xFF000000 | rnd.nextInt(0x1000000);
+        return pix;
+    }
+
+    @Test
+    public void hwcMatchesBaseline() {
+        int n = W * H;
+        int[] pix = randomPixels(n, 42);
+        float[] base = new float[3 * n];
+        float[] hwc = new float[3 * n];
+        baselineHWC(pix, base, MEAN, STD);
+
+        new TensorPacker(TensorPacker.Layout.HWC, false, MEAN, STD).pack(pix, 0, n, n, hwc);
+        assertArrayEquals(base, hwc, 1e-6f);
+    }
+
+    @Test
+    public void chwIsPlanarBaseline() {
+        int n = W * H;
+        int[] pix = randomPixels(n, 43);
+        float[] base = new float[3 * n];
+        float[] chw = new float[3 * n];
+        baselineHWC(pix, base, MEAN, STD);
+
+        new TensorPacker(TensorPacker.Layout.CHW, false, MEAN, STD).pack(pix, 0, n, n, chw);
+        for (int i = 0; i < n; i++) {
+            for (int c = 0; c < 3; c++) {
+                assertEquals(base[i * 3 + c], chw[c * n + i], 1e-6f);
+            }
+        }
+    }
+
+    @Test
+    public void bgrSwapsChannels() {
+        int n = W * H;
+        int[] pix = randomPixels(n, 44);
+        float[] rgb = new float[3 * n];
+        float[] bgr = new float[3 * n];
+        new TensorPacker(TensorPacker.Layout.HWC, false, MEAN, STD).pack(pix, 0, n, n, rgb);
+        new TensorPacker(TensorPacker.Layout.HWC, true, MEAN, STD).pack(pix, 0, n, n, bgr);
+        for (int i = 0; i < n; i++) {
+            assertEquals(rgb[i * 3], bgr[i * 3 + 2], 0.0f);
+            assertEquals(rgb[i * 3 + 1], bgr[i * 3 + 1], 0.0f);
+            assertEquals(rgb[i * 3 + 2], bgr[i * 3], 0.0f);
+        }
+    }
+
+    @Test
+    public void stripesAndBufferMatchWholeArray() {
+        int n = W * H;
+        int[] pix = randomPixels(n, 45);
+        for (TensorPacker.Layout layout: TensorPacker.Layout.values()) {
+            TensorPacker packer = new TensorPacker(layout, false, MEAN, STD);
+            float[] whole = new float[3 * n];
+            packer.pack(pix, 0, n, n, whole);
+
+            float[] striped = new float[3 * n];
+            FloatBuffer buf = FloatBuffer.allocate(3 * n);
+            for (int start = 0; start < n; start += W * 5) {
+                int end = Math.min(n, start + W * 5);
+                packer.pack(pix, start, end, n, striped);
+                packer.pack(pix, start, end, n, buf);
+            }
+            assertArrayEquals(whole, striped, 0.0f);
+            assertArrayEquals(whole, buf.array(), 0.0f);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.numericcal.classifierdemo;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * TopK against a full sort of the scores.
+ */
+public class TopKTest {
+
+    @Test
+    public void matchesSort() {
+        Random rnd = new Random(7);
+        for (int round = 0; round < 100; round++) {
+            int n = 1 + rnd.nextInt(200);
+            float[] arr = new float[n];
+            for (int i = 0; i < n; i++) arr[i] = rnd.nextFloat();
+            float[] copy = arr.clone();
+
+            int k = 1 + rnd.nextInt(10);
+            TopK top = new TopK(k).select(arr);
+
+            float[] sorted = arr.clone();
+            Arrays.sort(sorted);
+            assertEquals(Math.min(k, n), top.size());
+            for (int r = 0; r < top.size(); r++) {
+                assertEquals(sorted[n - 1 - r], top.score(r), 0.0);
+                assertEquals(top.score(r), arr[top.index(r)], 0.0);
+            }
+            assertArrayEquals(copy, arr, 0.0f);
+        }
+    }
+
+    @Test
+    public void zeroSelectsNothing() {
+        TopK top = new TopK(0).select(new float[] {0.1f, 0.9f, 0.5f});
+        assertEquals(0, top.size());
+        assertEquals(0, top.capacity());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeRejected() {
+        new TopK(-1);
+    }
+
+    @Test
+    public void thresholdAndRange() {
+        float[] arr = {0.9f, 0.2f, 0.7f, 0.4f, 0.8f, 0.1f};
+        TopK top = new TopK(3).select(arr, 1, 5, 0.3f);
+        // candidates 0.2, 0.7, 0.4, 0.8, indices relative to start
+        assertEquals(3, top.size());
+        assertEquals(3, top.index(0));
+        assertEquals(1, top.index(1));
+        assertEquals(2, top.index(2));
+    }
+
+    @Test
+    public void skipsNaN() {
+        float[] arr = {Float.NaN, 0.5f, Float.NaN, 0.3f};
+        TopK top = new TopK(4).select(arr);
+        assertEquals(2, top.size());
+        assertEquals(1, top.index(0));
+        assertEquals(3, top.index(1));
+    }
+
+    @Test
+    public void reusable() {
+        TopK top = new TopK(2);
+        top.select(new float[] {1f, 2f, 3f});
+        top.select(new float[] {5f});
+        assertEquals(1, top.size());
+        assertEquals(5f, top.score(0), 0.0);
+    }
+}